@@ -0,0 +1,232 @@
+package core;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+/**
+ * Headless chat client session: performs the login handshake, keeps online users published by the server
+ * and turns received messages into events, independently of the transport and the user interface.
+ *
+ * @author Bartosz Śledź
+ */
+public final class ChatSession implements Transport.Listener {
+
+    /**
+     * Receives session events.
+     */
+    public interface Listener {
+
+        /**
+         * Called once the user has been admitted.
+         */
+        void onConnected();
+
+        /**
+         * Called for every line to display.
+         *
+         * @param line {@link String}
+         */
+        void onLine(String line);
+
+        /**
+         * Called when the server published online users.
+         *
+         * @param users {@link Set}
+         */
+        void onUsers(Set<String> users);
+
+        /**
+         * Called when the server rejected the login, {@link ChatSession#login()} retries it.
+         * Once admitted, rejections of the same username are meant for other clients and are ignored.
+         *
+         * @param session {@link ChatSession}
+         * @param reason  {@link String}
+         */
+        void onRejected(ChatSession session, String reason);
+
+        /**
+         * Called when the connection has been lost, the login is repeated once the transport reconnects.
+         *
+         * @param cause {@link IOException}
+         */
+        void onReconnecting(IOException cause);
+
+        /**
+         * Called once the transport is closed.
+         *
+         * @param cause {@link IOException} or null when closed on request
+         */
+        void onDisconnected(IOException cause);
+    }
+
+    private final Transport transport;
+    private final Supplier<String> username;
+    private final Listener listener;
+    private volatile Set<String> users = Collections.emptySet();
+    private volatile boolean connected;
+
+    /**
+     * @param transport {@link Transport}
+     * @param username  {@link Supplier} asked for the username on every login
+     * @param listener  {@link Listener}
+     */
+    public ChatSession(final Transport transport, final Supplier<String> username, final Listener listener) {
+        this.transport = transport;
+        this.username = username;
+        this.listener = listener;
+    }
+
+    /**
+     * Opens the transport, login is sent once the server asks for it.
+     */
+    public void open() {
+        transport.open(this);
+    }
+
+    /**
+     * Sends login request with the current username.
+     */
+    public void login() {
+        transport.send(new Message(Message.Type.LOGIN, username.get(), null));
+    }
+
+    /**
+     * Sends text to all online users.
+     *
+     * @param text {@link String}
+     */
+    public void send(final String text) {
+        transport.send(new Message(Message.Type.TEXT, username.get(), text));
+    }
+
+    /**
+     * Leaves the chat and closes the transport.
+     */
+    public void close() {
+        if (connected) {
+            transport.send(new Message(Message.Type.LEFT, username.get(), null));
+        }
+        transport.close();
+    }
+
+    /**
+     * Returns online users last published by the server.
+     *
+     * @return {@link Set}
+     */
+    public Set<String> getUsers() {
+        return users;
+    }
+
+    /**
+     * Checks if the user has been admitted.
+     *
+     * @return {@link boolean}
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Returns the transport of the session.
+     *
+     * @return {@link Transport}
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onMessage(final Message message) {
+        if (message.getUsers() != null) {
+            users = message.getUsers();
+            listener.onUsers(users);
+        }
+
+        switch (message.getType()) {
+            case CONNECT:
+                login();
+                break;
+            case ACCEPTED:
+                if (isOwn(message)) {
+                    markConnected();
+                }
+                listener.onLine(String.format("%s: %s", message.getUsername(), Protocol.JOINED) + "\n");
+                break;
+            case ONLINE:
+                markConnected();
+                break;
+            case PRESENCE:
+                applyPresence(message.getText());
+                break;
+            case TEXT:
+                listener.onLine(String.format("%s: %s", message.getUsername(), message.getText()) + "\n");
+                break;
+            case LEFT:
+                listener.onLine(String.format("%s: %s", message.getUsername(), Protocol.LEFT) + "\n");
+                break;
+            case SHUTDOWN:
+                listener.onLine(message.getText() + "\n");
+                break;
+            case REJECTED:
+            case ERROR:
+                if (!connected && isOwn(message)) {
+                    listener.onRejected(this, message.getText());
+                }
+                break;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onReconnecting(final IOException cause) {
+        connected = false;
+        listener.onReconnecting(cause);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onClosed(final IOException cause) {
+        connected = false;
+        listener.onDisconnected(cause);
+    }
+
+    /**
+     * Applies joined and left users to the online users.
+     *
+     * @param changes {@link String}
+     */
+    private void applyPresence(final String changes) {
+        final Set<String> updated = new TreeSet<>(users);
+        for (String change : changes.split(", ")) {
+            if (change.length() < 2) {
+                continue;
+            }
+            if (change.charAt(0) == '+') {
+                updated.add(change.substring(1));
+            } else {
+                updated.remove(change.substring(1));
+            }
+        }
+        users = Collections.unmodifiableSet(updated);
+        listener.onUsers(users);
+    }
+
+    private boolean isOwn(final Message message) {
+        return message.getUsername() == null || message.getUsername().equals(username.get());
+    }
+
+    private void markConnected() {
+        if (!connected) {
+            connected = true;
+            listener.onConnected();
+        }
+    }
+}
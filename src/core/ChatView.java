@@ -0,0 +1,51 @@
+package core;
+
+import java.util.Set;
+
+/**
+ * Swing window of a chat client. All methods except {@link #getUsername()} are called on EDT.
+ *
+ * @author Bartosz Śledź
+ */
+public interface ChatView {
+
+    /**
+     * Returns the current username.
+     *
+     * @return {@link String}
+     */
+    String getUsername();
+
+    /**
+     * Displays received messages from others users.
+     *
+     * @param message {@link String}
+     */
+    void displayMessage(String message);
+
+    /**
+     * Displays all users who are online.
+     *
+     * @param usersSet {@link Set}
+     */
+    void setOnlineUsers(Set<String> usersSet);
+
+    /**
+     * Displays a window with information.
+     *
+     * @param info {@link String}
+     */
+    void showInfo(String info);
+
+    /**
+     * Updates the view after the user has been admitted.
+     */
+    void afterConnect();
+
+    /**
+     * Asks for another username after the previous one has been rejected.
+     *
+     * @return {@link boolean} true when the login should be retried
+     */
+    boolean requestUsername();
+}
@@ -0,0 +1,25 @@
+package core;
+
+/**
+ * Converts {@link Message} to the wire format of a transport and back.
+ *
+ * @author Bartosz Śledź
+ */
+public interface Codec {
+
+    /**
+     * Encodes message as a single frame.
+     *
+     * @param message {@link Message}
+     * @return {@link String} or null when the message is not sent over this transport
+     */
+    String encode(Message message);
+
+    /**
+     * Decodes single frame.
+     *
+     * @param frame {@link String}
+     * @return {@link Message} or null when the frame is not recognized
+     */
+    Message decode(String frame);
+}
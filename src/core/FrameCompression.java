@@ -0,0 +1,165 @@
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-frame deflate compression of TCP frames negotiated during the CONNECT handshake.
+ * A compressed frame is the zlib stream encoded with Base64 and prefixed with {@link #PREFIX},
+ * so it still fits into the line based framing.
+ * <p>
+ * Most of a chat frame is the list of online users, so frames carrying a user list are compressed with
+ * a preset {@link Dictionary} holding that list and the protocol tokens. Both sides take the dictionary from
+ * the last frame carrying a user list received over the connection: the server sends a frame whose user list
+ * differs from it uncompressed, so the roster is sent once per change instead of with every message.
+ * The zlib header names the dictionary by its checksum, a frame compressed with a dictionary
+ * the receiver does not hold is detected and discarded.
+ *
+ * @author Bartosz Śledź
+ */
+public final class FrameCompression {
+
+    public static final char PREFIX = '~';
+    public static final int THRESHOLD = 128;
+
+    private static final String USERS = " [";
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private static volatile Dictionary last;
+
+    /**
+     * Preset dictionary made of the user list of a frame, equal for equal user lists.
+     */
+    public static final class Dictionary {
+        private final String users;
+        private final byte[] bytes;
+        private final int checksum;
+
+        private Dictionary(final String users) {
+            this.users = users;
+            this.bytes = String.format("%s %s %s: %s", Protocol.ONLINE, Protocol.MESSAGE, Protocol.PRESENCE, users)
+                    .getBytes(StandardCharsets.UTF_8);
+            final Adler32 adler = new Adler32();
+            adler.update(bytes, 0, bytes.length);
+            this.checksum = (int) adler.getValue();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public boolean equals(final Object other) {
+            return this == other || other instanceof Dictionary && users.equals(((Dictionary) other).users);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int hashCode() {
+            return users.hashCode();
+        }
+    }
+
+    private FrameCompression() {
+    }
+
+    /**
+     * Returns dictionary of the user list carried by an ONLINE or MESSAGE frame, the last dictionary is
+     * reused while the user list does not change.
+     *
+     * @param frame {@link String} uncompressed frame
+     * @return {@link Dictionary} or null when the frame carries no user list
+     */
+    public static Dictionary dictionaryOf(final String frame) {
+        if (!frame.startsWith(Protocol.ONLINE) && !frame.startsWith(Protocol.MESSAGE)) {
+            return null;
+        }
+        final int start = frame.lastIndexOf(USERS);
+        if (start < 0 || !frame.endsWith("]")) {
+            return null;
+        }
+        final int length = frame.length() - start - 1;
+        final Dictionary cached = last;
+        if (cached != null && cached.users.length() == length && frame.regionMatches(start + 1, cached.users, 0, length)) {
+            return cached;
+        }
+        final Dictionary dictionary = new Dictionary(frame.substring(start + 1));
+        last = dictionary;
+        return dictionary;
+    }
+
+    /**
+     * Compresses frame.
+     *
+     * @param frame      {@link String}
+     * @param dictionary {@link Dictionary} held by the receiver or null for none
+     * @return {@link String} or null when the frame is below the threshold or would not get smaller
+     */
+    public static String compress(final String frame, final Dictionary dictionary) {
+        if (frame.length() < THRESHOLD) {
+            return null;
+        }
+        final byte[] input = frame.getBytes(StandardCharsets.UTF_8);
+        final Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary.bytes);
+        }
+        deflater.setInput(input);
+        deflater.finish();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 2);
+        final byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+            output.write(buffer, 0, deflater.deflate(buffer));
+        }
+        final String compressed = PREFIX + Base64.getEncoder().encodeToString(output.toByteArray());
+        return compressed.length() < frame.length() ? compressed : null;
+    }
+
+    /**
+     * Checks if the frame is compressed.
+     *
+     * @param frame {@link String}
+     * @return {@link boolean}
+     */
+    public static boolean isCompressed(final String frame) {
+        return !frame.isEmpty() && frame.charAt(0) == PREFIX;
+    }
+
+    /**
+     * Decompresses frame produced by {@link #compress(String, Dictionary)}.
+     *
+     * @param frame      {@link String}
+     * @param dictionary {@link Dictionary} of the last frame carrying a user list or null
+     * @return {@link String} or null when the frame is corrupted or needs another dictionary
+     */
+    public static String decompress(final String frame, final Dictionary dictionary) {
+        final Inflater inflater = INFLATER.get();
+        inflater.reset();
+        try {
+            inflater.setInput(Base64.getDecoder().decode(frame.substring(1)));
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(frame.length() * 4);
+            final byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                final int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && inflater.needsDictionary()) {
+                    if (dictionary == null || inflater.getAdler() != dictionary.checksum) {
+                        return null;
+                    }
+                    inflater.setDictionary(dictionary.bytes);
+                } else if (inflated == 0 && inflater.needsInput()) {
+                    return null;
+                }
+                output.write(buffer, 0, inflated);
+            }
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException | DataFormatException e) {
+            return null;
+        }
+    }
+}
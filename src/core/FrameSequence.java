@@ -0,0 +1,97 @@
+package core;
+
+/**
+ * Sequence numbers of broadcast TCP frames. The server numbers every frame broadcast to a room in the single
+ * order all its users receive them in, a sequenced frame is the frame prefixed with {@link #PREFIX}, the number
+ * and a space. The number stays outside of a compressed frame, so it is stripped before decompression.
+ * Frames sent to a single user are not sequenced.
+ * <p>
+ * An instance tracks frames received over one connection: the first sequenced frame sets the expected number,
+ * later gaps are counted as missed frames and frames repeating an already received number are discarded.
+ *
+ * @author Bartosz Śledź
+ */
+public final class FrameSequence {
+
+    public static final char PREFIX = '#';
+
+    private long expected = -1;
+    private long gaps;
+    private long missed;
+    private long duplicates;
+
+    /**
+     * Prefixes frame with its sequence number.
+     *
+     * @param sequence {@link long}
+     * @param frame    {@link String}
+     * @return {@link String}
+     */
+    public static String sequenced(final long sequence, final String frame) {
+        return prefix(sequence) + frame;
+    }
+
+    /**
+     * Returns prefix of a frame with the sequence number.
+     *
+     * @param sequence {@link long}
+     * @return {@link String}
+     */
+    public static String prefix(final long sequence) {
+        return PREFIX + Long.toString(sequence) + ' ';
+    }
+
+    /**
+     * Strips the sequence number of a received frame and checks it against the expected one.
+     *
+     * @param frame {@link String}
+     * @return {@link String} frame without the sequence number or null when the frame has been received already
+     */
+    public String accept(final String frame) {
+        if (frame.isEmpty() || frame.charAt(0) != PREFIX) {
+            return frame;
+        }
+        final int separator = frame.indexOf(' ');
+        final long sequence;
+        try {
+            sequence = Long.parseLong(frame.substring(1, separator < 0 ? frame.length() : separator));
+        } catch (NumberFormatException e) {
+            return frame;
+        }
+        if (expected >= 0 && sequence < expected) {
+            duplicates++;
+            return null;
+        }
+        if (expected >= 0 && sequence > expected) {
+            gaps++;
+            missed += sequence - expected;
+        }
+        expected = sequence + 1;
+        return separator < 0 ? "" : frame.substring(separator + 1);
+    }
+
+    /**
+     * Forgets the expected number, a new connection starts a new sequence.
+     */
+    public void reset() {
+        expected = -1;
+    }
+
+    /**
+     * Returns number of frames lost between received frames.
+     *
+     * @return {@link long}
+     */
+    public long getMissed() {
+        return missed;
+    }
+
+    /**
+     * Returns gap and duplicate counters.
+     *
+     * @return {@link String}
+     */
+    public String getStats() {
+        return String.format("sequence gaps: %d, missed: %d, duplicates: %d", gaps, missed, duplicates);
+    }
+}
@@ -0,0 +1,96 @@
+package core;
+
+import java.util.Set;
+
+/**
+ * Transport independent chat message.
+ *
+ * @author Bartosz Śledź
+ */
+public final class Message {
+
+    public enum Type {
+        /**
+         * Server asks the client for its username, text holds the offered compression.
+         */
+        CONNECT,
+        /**
+         * Client asks for admission with its username.
+         */
+        LOGIN,
+        /**
+         * Server admitted the user.
+         */
+        ACCEPTED,
+        /**
+         * Server rejected the user, text holds the reason.
+         */
+        REJECTED,
+        /**
+         * Server published current online users.
+         */
+        ONLINE,
+        /**
+         * Server published changes of online users since the last presence message,
+         * text holds entries "+username" and "-username" separated by ", ".
+         */
+        PRESENCE,
+        /**
+         * Chat text of the user.
+         */
+        TEXT,
+        /**
+         * User left the chat.
+         */
+        LEFT,
+        /**
+         * Client renews its lease.
+         */
+        HEARTBEAT,
+        /**
+         * Error reported by the server.
+         */
+        ERROR,
+        /**
+         * Server is going down, text holds the notice. Clients may reconnect.
+         */
+        SHUTDOWN
+    }
+
+    private final Type type;
+    private final String username;
+    private final String text;
+    private final Set<String> users;
+
+    public Message(final Type type, final String username, final String text, final Set<String> users) {
+        this.type = type;
+        this.username = username;
+        this.text = text;
+        this.users = users;
+    }
+
+    public Message(final Type type, final String username, final String text) {
+        this(type, username, text, null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns online users published together with the message.
+     *
+     * @return {@link Set} or null when the message carries no online users
+     */
+    public Set<String> getUsers() {
+        return users;
+    }
+}
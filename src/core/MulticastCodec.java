@@ -0,0 +1,78 @@
+package core;
+
+/**
+ * Datagram codec of the multicast chat: "username: text{action:}" optionally followed by "[users]"
+ * when the frame is published by the relay server.
+ *
+ * @author Bartosz Śledź
+ */
+public final class MulticastCodec implements Codec {
+
+    /**
+     * {@inheritDoc}
+     */
+    public String encode(final Message message) {
+        final String text = message.getText() != null ? message.getText() : "";
+        final String users = message.getUsers() != null ? message.getUsers().toString() : "";
+        return String.format("%s: %s{%s:}%s", message.getUsername(), text, action(message.getType()), users);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Message decode(final String frame) {
+        final int separator = frame.indexOf(':');
+        final int actionEnd = frame.lastIndexOf(":}");
+        final int actionStart = frame.lastIndexOf('{', actionEnd);
+        if (separator < 0 || actionStart <= separator) {
+            return null;
+        }
+        final Message.Type type = type(frame.substring(actionStart + 1, actionEnd));
+        if (type == null) {
+            return null;
+        }
+        final String text = frame.substring(separator + 1, actionStart);
+        return new Message(type,
+                frame.substring(0, separator),
+                text.startsWith(" ") ? text.substring(1) : text,
+                Protocol.parseUsers(frame, actionEnd));
+    }
+
+    private static String action(final Message.Type type) {
+        switch (type) {
+            case LOGIN:
+                return Protocol.JOINED;
+            case ACCEPTED:
+                return Protocol.ACCEPTED;
+            case REJECTED:
+                return Protocol.REJECTED;
+            case TEXT:
+                return Protocol.TEXT;
+            case LEFT:
+                return Protocol.LEFT;
+            case HEARTBEAT:
+                return Protocol.INFO;
+            default:
+                throw new IllegalArgumentException("Unsupported message type: " + type);
+        }
+    }
+
+    private static Message.Type type(final String action) {
+        switch (action) {
+            case Protocol.JOINED:
+                return Message.Type.LOGIN;
+            case Protocol.ACCEPTED:
+                return Message.Type.ACCEPTED;
+            case Protocol.REJECTED:
+                return Message.Type.REJECTED;
+            case Protocol.TEXT:
+                return Message.Type.TEXT;
+            case Protocol.LEFT:
+                return Message.Type.LEFT;
+            case Protocol.INFO:
+                return Message.Type.HEARTBEAT;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package core;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Constants shared by all chat servers, clients and transports.
+ *
+ * @author Bartosz Śledź
+ */
+public final class Protocol {
+
+    public static final int MAX_USERS = 10;
+    public static final int TCP_PORT = 9000;
+    public static final String MULTICAST_ADDRESS = "230.0.0.0";
+    public static final int MULTICAST_CLIENT_PORT = 4444;
+    public static final int MULTICAST_SERVER_PORT = 4446;
+
+    public static final String CONNECT = "CONNECT";
+    public static final String ONLINE = "ONLINE";
+    public static final String PRESENCE = "PRESENCE";
+    public static final String MESSAGE = "MESSAGE";
+    public static final String ERROR = "ERROR";
+    public static final String SHUTDOWN = "SHUTDOWN";
+    public static final String COMPRESS = "COMPRESS";
+    public static final String DEFLATE = "deflate";
+    public static final char DIRECT = '@';
+
+    public static final String JOINED = "joined";
+    public static final String ACCEPTED = "accepted";
+    public static final String REJECTED = "rejected";
+    public static final String LEFT = "left";
+    public static final String TEXT = "text";
+    public static final String INFO = "info";
+
+    public static final String LOGIN_TAKEN = "Login is already used!";
+    public static final String LIMIT_REACHED = "Limit of online users on the server has been reached: " + MAX_USERS;
+
+    private Protocol() {
+    }
+
+    /**
+     * Returns recipient of a direct text formatted as "@username text".
+     *
+     * @param text {@link String}
+     * @return {@link String} or null when the text is for all users
+     */
+    public static String recipientOf(final String text) {
+        if (text == null || text.isEmpty() || text.charAt(0) != DIRECT) {
+            return null;
+        }
+        final int end = text.indexOf(' ');
+        return end > 1 ? text.substring(1, end) : null;
+    }
+
+    /**
+     * Parses online users formatted as "[a, b]" starting at the given index.
+     *
+     * @param frame {@link String}
+     * @param from  {@link int}
+     * @return {@link Set} or null when there is no list of users
+     */
+    static Set<String> parseUsers(final String frame, final int from) {
+        final int start = frame.indexOf('[', from);
+        final int end = frame.lastIndexOf(']');
+        if (start < 0 || end < start) {
+            return null;
+        }
+        if (end == start + 1) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(new HashSet<>(Arrays.asList(frame.substring(start + 1, end).split(", "))));
+    }
+}
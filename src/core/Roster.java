@@ -0,0 +1,161 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrent registry of online users of the multicast relay server, the TCP server keeps its users
+ * in its own session registry.
+ * Every user is bound to the owner it joined with (connection, address) and, when leases are enabled,
+ * has to renew its lease to stay online.
+ *
+ * @author Bartosz Śledź
+ */
+public final class Roster {
+
+    public enum Admission {
+        ACCEPTED, TAKEN, LIMIT
+    }
+
+    private static final class Member {
+        private final Object owner;
+        private volatile long leaseExpiry;
+
+        private Member(final Object owner, final long leaseExpiry) {
+            this.owner = owner;
+            this.leaseExpiry = leaseExpiry;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Member> members = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int maxMembers;
+    private final long leaseMillis;
+    private volatile Set<String> snapshot = Collections.emptySet();
+
+    /**
+     * @param maxMembers  {@link int}
+     * @param leaseMillis {@link long} 0 disables lease expiry
+     */
+    public Roster(final int maxMembers, final long leaseMillis) {
+        this.maxMembers = maxMembers;
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * Admits user with unique name while there is free capacity.
+     * Repeated admission by the same owner only renews the lease.
+     *
+     * @param username {@link String}
+     * @param owner    {@link Object}
+     * @return {@link Admission}
+     */
+    public Admission admit(final String username, final Object owner) {
+        final long expiry = leaseExpiry();
+        final Member existing = members.get(username);
+        if (existing != null) {
+            return renew(existing, owner, expiry) ? Admission.ACCEPTED : Admission.TAKEN;
+        }
+        if (size.incrementAndGet() > maxMembers) {
+            size.decrementAndGet();
+            return Admission.LIMIT;
+        }
+        final Member previous = members.putIfAbsent(username, new Member(owner, expiry));
+        if (previous != null) {
+            size.decrementAndGet();
+            return renew(previous, owner, expiry) ? Admission.ACCEPTED : Admission.TAKEN;
+        }
+        updateSnapshot();
+        return Admission.ACCEPTED;
+    }
+
+    /**
+     * Renews lease of the user.
+     *
+     * @param username {@link String}
+     * @param owner    {@link Object}
+     * @return {@link boolean} false when the user is not a member joined by this owner
+     */
+    public boolean renew(final String username, final Object owner) {
+        final Member member = members.get(username);
+        return member != null && renew(member, owner, leaseExpiry());
+    }
+
+    private boolean renew(final Member member, final Object owner, final long expiry) {
+        if (!member.owner.equals(owner)) {
+            return false;
+        }
+        member.leaseExpiry = expiry;
+        return true;
+    }
+
+    /**
+     * Removes the user if it joined by this owner.
+     *
+     * @param username {@link String}
+     * @param owner    {@link Object}
+     * @return {@link boolean}
+     */
+    public boolean remove(final String username, final Object owner) {
+        final Member member = members.get(username);
+        if (member != null && member.owner.equals(owner) && members.remove(username, member)) {
+            size.decrementAndGet();
+            updateSnapshot();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes all users whose lease has expired.
+     *
+     * @return {@link List} names of removed users
+     */
+    public List<String> expire() {
+        final long now = System.currentTimeMillis();
+        final List<String> expired = new ArrayList<>();
+        for (Map.Entry<String, Member> entry : members.entrySet()) {
+            if (entry.getValue().leaseExpiry < now && members.remove(entry.getKey(), entry.getValue())) {
+                size.decrementAndGet();
+                expired.add(entry.getKey());
+            }
+        }
+        if (!expired.isEmpty()) {
+            updateSnapshot();
+        }
+        return expired;
+    }
+
+    /**
+     * Checks if the user is online.
+     *
+     * @param username {@link String}
+     * @return {@link boolean}
+     */
+    public boolean contains(final String username) {
+        return members.containsKey(username);
+    }
+
+    /**
+     * Returns sorted, immutable snapshot of online users.
+     *
+     * @return {@link Set}
+     */
+    public Set<String> snapshot() {
+        return snapshot;
+    }
+
+    private long leaseExpiry() {
+        return leaseMillis > 0 ? System.currentTimeMillis() + leaseMillis : Long.MAX_VALUE;
+    }
+
+    private synchronized void updateSnapshot() {
+        snapshot = Collections.unmodifiableSet(new TreeSet<>(members.keySet()));
+    }
+}
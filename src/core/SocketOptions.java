@@ -0,0 +1,81 @@
+package core;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * TCP socket options and the write coalescing window shared by servers and clients.
+ * Read from the system properties "tcp.nodelay" (default true), "tcp.sndbuf" and "tcp.rcvbuf" (bytes, 0 keeps
+ * the system default) and "tcp.coalesce.micros" (default 50, 0 disables coalescing).
+ * <p>
+ * Writers flush right away when the connection is idle. A connection is busy when frames were queued while
+ * the previous write was in progress, then the writer waits up to the coalescing window for more frames
+ * and writes them all at once.
+ *
+ * @author Bartosz Śledź
+ */
+public final class SocketOptions {
+
+    private final boolean noDelay;
+    private final int sendBuffer;
+    private final int receiveBuffer;
+    private final long coalesceNanos;
+
+    /**
+     * @param noDelay        {@link boolean} disables Nagle's algorithm
+     * @param sendBuffer     {@link int} 0 keeps the system default
+     * @param receiveBuffer  {@link int} 0 keeps the system default
+     * @param coalesceMicros {@link long} 0 disables coalescing
+     */
+    public SocketOptions(final boolean noDelay, final int sendBuffer, final int receiveBuffer, final long coalesceMicros) {
+        this.noDelay = noDelay;
+        this.sendBuffer = sendBuffer;
+        this.receiveBuffer = receiveBuffer;
+        this.coalesceNanos = coalesceMicros * 1000;
+    }
+
+    /**
+     * Reads options from the system properties.
+     *
+     * @return {@link SocketOptions}
+     */
+    public static SocketOptions fromSystemProperties() {
+        return new SocketOptions(Boolean.parseBoolean(System.getProperty("tcp.nodelay", "true")),
+                Integer.getInteger("tcp.sndbuf", 0), Integer.getInteger("tcp.rcvbuf", 0),
+                Long.getLong("tcp.coalesce.micros", 50));
+    }
+
+    /**
+     * Applies options to a socket before it connects, so the receive buffer is taken into account when the TCP
+     * window scale is negotiated.
+     *
+     * @param socket {@link Socket}
+     */
+    public void apply(final Socket socket) throws SocketException {
+        socket.setTcpNoDelay(noDelay);
+        if (sendBuffer > 0) {
+            socket.setSendBufferSize(sendBuffer);
+        }
+        if (receiveBuffer > 0) {
+            socket.setReceiveBufferSize(receiveBuffer);
+        }
+    }
+
+    /**
+     * Returns receive buffer size which has to be set on a server socket before it is bound.
+     *
+     * @return {@link int} 0 for the system default
+     */
+    public int getReceiveBuffer() {
+        return receiveBuffer;
+    }
+
+    /**
+     * Returns how long a busy writer waits for more frames.
+     *
+     * @return {@link long} nanoseconds
+     */
+    public long getCoalesceNanos() {
+        return coalesceNanos;
+    }
+}
@@ -0,0 +1,68 @@
+package core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free ring for exactly one producer thread and one consumer thread.
+ *
+ * @author Bartosz Śledź
+ */
+public final class SpscRing<E> {
+
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity {@link int} rounded up to the next power of two
+     */
+    public SpscRing(final int capacity) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds element at the tail. Must only be called from the producer thread.
+     *
+     * @param element {@link Object}
+     * @return {@link boolean} false when the ring is full
+     */
+    public boolean offer(final E element) {
+        final long currentTail = tail.get();
+        if (currentTail - head.get() > mask) {
+            return false;
+        }
+        slots.lazySet((int) currentTail & mask, element);
+        tail.lazySet(currentTail + 1);
+        return true;
+    }
+
+    /**
+     * Removes element from the head. Must only be called from the consumer thread.
+     *
+     * @return {@link Object} or null when the ring is empty
+     */
+    public E poll() {
+        final long currentHead = head.get();
+        if (currentHead == tail.get()) {
+            return null;
+        }
+        final int index = (int) currentHead & mask;
+        final E element = slots.get(index);
+        slots.lazySet(index, null);
+        head.lazySet(currentHead + 1);
+        return element;
+    }
+
+    /**
+     * Returns the number of elements currently in the ring.
+     *
+     * @return {@link int}
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+}
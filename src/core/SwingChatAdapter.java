@@ -0,0 +1,135 @@
+package core;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers session events to a {@link ChatView} on EDT.
+ * Lines and online users received in the meantime are coalesced into a single UI update,
+ * so slow rendering never blocks the transport threads.
+ * Counters of the transport and the UI are logged whenever the connection is lost and once the transport is closed.
+ *
+ * @author Bartosz Śledź
+ */
+public final class SwingChatAdapter implements ChatSession.Listener {
+
+    private static final int MAX_PENDING_LINES = 512;
+
+    private final ChatView view;
+    private final Transport transport;
+    private final ConcurrentLinkedQueue<String> pendingLines = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingLinesCount = new AtomicInteger();
+    private final AtomicBoolean uiUpdateScheduled = new AtomicBoolean();
+    private final AtomicLong uiDrops = new AtomicLong();
+    private volatile Set<String> users = Collections.emptySet();
+
+    /**
+     * @param view      {@link ChatView}
+     * @param transport {@link Transport} of the session, only its counters are read
+     */
+    public SwingChatAdapter(final ChatView view, final Transport transport) {
+        this.view = view;
+        this.transport = transport;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onConnected() {
+        SwingUtilities.invokeLater(view::afterConnect);
+    }
+
+    /**
+     * Queues line for display, dropping it when the UI is too far behind.
+     *
+     * @param line {@link String}
+     */
+    public void onLine(final String line) {
+        if (pendingLinesCount.incrementAndGet() > MAX_PENDING_LINES) {
+            pendingLinesCount.decrementAndGet();
+            uiDrops.incrementAndGet();
+            return;
+        }
+        pendingLines.offer(line);
+        scheduleUiUpdate();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onUsers(final Set<String> users) {
+        this.users = users;
+        scheduleUiUpdate();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onRejected(final ChatSession session, final String reason) {
+        SwingUtilities.invokeLater(() -> {
+            view.showInfo(reason);
+            if (view.requestUsername()) {
+                session.login();
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onReconnecting(final IOException cause) {
+        onLine(String.format("Connection lost (%s), reconnecting...", cause.getMessage()) + "\n");
+        System.out.println(getStats());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onDisconnected(final IOException cause) {
+        if (cause != null) {
+            cause.printStackTrace();
+        }
+        System.out.println(getStats());
+    }
+
+    /**
+     * Returns counters of the transport and the number of lines dropped because the UI was too far behind.
+     *
+     * @return {@link String}
+     */
+    public String getStats() {
+        return String.format("%s, ui drops: %d", transport.getStats(), uiDrops.get());
+    }
+
+    /**
+     * Schedules single UI update on EDT, updates requested in the meantime are coalesced into it.
+     */
+    private void scheduleUiUpdate() {
+        if (uiUpdateScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::updateUi);
+        }
+    }
+
+    /**
+     * Displays all queued lines at once and refreshes online users.
+     */
+    private void updateUi() {
+        uiUpdateScheduled.set(false);
+        final StringBuilder lines = new StringBuilder();
+        String line;
+        while ((line = pendingLines.poll()) != null) {
+            pendingLinesCount.decrementAndGet();
+            lines.append(line);
+        }
+        if (lines.length() > 0) {
+            view.displayMessage(lines.toString());
+        }
+        view.setOnlineUsers(users);
+    }
+}
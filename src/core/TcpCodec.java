@@ -0,0 +1,119 @@
+package core;
+
+/**
+ * Line based codec of the TCP chat.
+ * Server frames are "CONNECT [compression]", "ONLINE [users]", "PRESENCE [+joined, -left]", "MESSAGE username: text [users]", "ERROR:reason" and "SHUTDOWN notice",
+ * client frames are the plain username during handshake and the plain text afterwards.
+ *
+ * @author Bartosz Śledź
+ */
+public final class TcpCodec implements Codec {
+
+    private final boolean serverSide;
+
+    private TcpCodec(final boolean serverSide) {
+        this.serverSide = serverSide;
+    }
+
+    /**
+     * Returns codec encoding server frames and decoding client frames.
+     *
+     * @return {@link TcpCodec}
+     */
+    public static TcpCodec forServer() {
+        return new TcpCodec(true);
+    }
+
+    /**
+     * Returns codec encoding client frames and decoding server frames.
+     *
+     * @return {@link TcpCodec}
+     */
+    public static TcpCodec forClient() {
+        return new TcpCodec(false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String encode(final Message message) {
+        if (!serverSide) {
+            switch (message.getType()) {
+                case LOGIN:
+                    return message.getUsername();
+                case TEXT:
+                    return message.getText();
+                default:
+                    return null;
+            }
+        }
+        switch (message.getType()) {
+            case CONNECT:
+                return message.getText() != null ? String.format("%s %s", Protocol.CONNECT, message.getText()) : Protocol.CONNECT;
+            case ONLINE:
+                return String.format("%s %s", Protocol.ONLINE, message.getUsers());
+            case PRESENCE:
+                return String.format("%s [%s]", Protocol.PRESENCE, message.getText());
+            case TEXT:
+                return String.format("%s %s: %s %s", Protocol.MESSAGE, message.getUsername(), message.getText(), message.getUsers());
+            case REJECTED:
+            case ERROR:
+                return String.format("%s:%s", Protocol.ERROR, message.getText());
+            case SHUTDOWN:
+                return String.format("%s %s", Protocol.SHUTDOWN, message.getText());
+            default:
+                throw new IllegalArgumentException("Unsupported message type: " + message.getType());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Message decode(final String frame) {
+        if (serverSide) {
+            return new Message(Message.Type.TEXT, null, frame);
+        }
+        if (frame.startsWith(Protocol.CONNECT)) {
+            return new Message(Message.Type.CONNECT, null, frame.length() > Protocol.CONNECT.length()
+                    ? frame.substring(Protocol.CONNECT.length() + 1)
+                    : null);
+        } else if (frame.startsWith(Protocol.ONLINE)) {
+            return new Message(Message.Type.ONLINE, null, null, Protocol.parseUsers(frame, Protocol.ONLINE.length()));
+        } else if (frame.startsWith(Protocol.PRESENCE)) {
+            final int start = frame.indexOf('[');
+            final int end = frame.lastIndexOf(']');
+            return start < 0 || end < start ? null : new Message(Message.Type.PRESENCE, null, frame.substring(start + 1, end));
+        } else if (frame.startsWith(Protocol.MESSAGE)) {
+            return decodeText(frame);
+        } else if (frame.startsWith(Protocol.ERROR)) {
+            return new Message(Message.Type.ERROR, null, textAfter(frame, Protocol.ERROR));
+        } else if (frame.startsWith(Protocol.SHUTDOWN)) {
+            return new Message(Message.Type.SHUTDOWN, null, textAfter(frame, Protocol.SHUTDOWN));
+        }
+        return null;
+    }
+
+    /**
+     * Returns text following the keyword and its separator.
+     *
+     * @param frame   {@link String}
+     * @param keyword {@link String}
+     * @return {@link String} empty when the frame is the bare keyword
+     */
+    private static String textAfter(final String frame, final String keyword) {
+        return frame.length() > keyword.length() + 1 ? frame.substring(keyword.length() + 1) : "";
+    }
+
+    private Message decodeText(final String frame) {
+        final int from = Protocol.MESSAGE.length() + 1;
+        final int separator = frame.indexOf(": ", from);
+        final int users = frame.lastIndexOf(" [");
+        if (separator < 0 || users < separator) {
+            return null;
+        }
+        return new Message(Message.Type.TEXT,
+                frame.substring(from, separator),
+                frame.substring(separator + 2, users),
+                Protocol.parseUsers(frame, users));
+    }
+}
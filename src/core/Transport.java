@@ -0,0 +1,64 @@
+package core;
+
+import java.io.IOException;
+
+/**
+ * Client side transport carrying {@link Message} between the client and the server.
+ *
+ * @author Bartosz Śledź
+ */
+public interface Transport {
+
+    /**
+     * Receives messages and state changes of the transport.
+     */
+    interface Listener {
+
+        /**
+         * Called for every received message.
+         *
+         * @param message {@link Message}
+         */
+        void onMessage(Message message);
+
+        /**
+         * Called when the connection has been lost and the transport is going to reconnect.
+         *
+         * @param cause {@link IOException}
+         */
+        void onReconnecting(IOException cause);
+
+        /**
+         * Called once the transport is closed.
+         *
+         * @param cause {@link IOException} or null when closed on request
+         */
+        void onClosed(IOException cause);
+    }
+
+    /**
+     * Starts the transport without blocking the caller, failures are reported to {@link Listener#onClosed}.
+     *
+     * @param listener {@link Listener}
+     */
+    void open(Listener listener);
+
+    /**
+     * Sends message to the server.
+     *
+     * @param message {@link Message}
+     */
+    void send(Message message);
+
+    /**
+     * Closes the transport.
+     */
+    void close();
+
+    /**
+     * Returns counters of the transport.
+     *
+     * @return {@link String}
+     */
+    String getStats();
+}
@@ -0,0 +1,284 @@
+package multicasting;
+
+import core.Codec;
+import core.Message;
+import core.MulticastCodec;
+import core.SpscRing;
+import core.Transport;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * UDP multicast transport talking to the relay {@link Server}.
+ * The receive thread only drains the socket into pooled packets and hands them to the decoder thread
+ * through a lock-free ring; when no pooled packet is free or the ring is full the datagram is counted
+ * as dropped, so the socket is always drained no matter how slow the listener is.
+ * Sends never block the caller: datagrams are queued in a bounded queue and sent, together with the heartbeats,
+ * by a scheduler thread shared by all transports of the process. On close the queue is drained, so the last
+ * datagrams, e.g. leaving the chat, are sent before the sockets are closed.
+ * Heartbeats are sent only once the server accepted the login of this client; when users published by the
+ * server no longer contain the user its lease has been lost and the login is repeated. Until the server answers
+ * the login, it is repeated every heartbeat period, so a lost answer does not leave the user offline; the server
+ * answers a repeated login of the same client the same way.
+ *
+ * @author Bartosz Śledź
+ */
+public final class MulticastTransport implements Transport {
+
+    private static final int BUFFER_SIZE = 20000;
+    private static final int POOL_SIZE = 64;
+    private static final long HEARTBEAT_MILLIS = 2000;
+    private static final int OUTBOUND_CAPACITY = 256;
+    private static final int LEFT_REPEATS = 3;
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "multicast-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final InetAddress group;
+    private final int port;
+    private final DatagramSocket sendSocket;
+    private final MulticastSocket receiveSocket;
+    private final Codec codec = new MulticastCodec();
+    private final SpscRing<DatagramPacket> freePackets = new SpscRing<>(POOL_SIZE);
+    private final SpscRing<DatagramPacket> receivedPackets = new SpscRing<>(POOL_SIZE);
+    private final DatagramPacket overflowPacket = new DatagramPacket(new byte[BUFFER_SIZE], BUFFER_SIZE);
+    private final Thread receiver = new Thread(this::receiveMessages, "multicast-receiver");
+    private final Thread decoder = new Thread(this::decodeMessages, "multicast-decoder");
+    private final AtomicLong receiveDrops = new AtomicLong();
+    private final AtomicLong decodeDrops = new AtomicLong();
+    private final AtomicLong sendDrops = new AtomicLong();
+    private final BlockingQueue<byte[]> outbound = new ArrayBlockingQueue<>(OUTBOUND_CAPACITY);
+    private final AtomicBoolean sendScheduled = new AtomicBoolean();
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+    private volatile Listener listener;
+    private volatile String username;
+    private volatile boolean leased;
+    private volatile boolean loginPending;
+    private volatile boolean stopped;
+    private volatile ScheduledFuture<?> heartbeat;
+
+    /**
+     * @param address    {@link String} multicast group
+     * @param port       {@link int} port the server receives on
+     * @param serverPort {@link int} port the server publishes on
+     */
+    public MulticastTransport(final String address, final int port, final int serverPort) throws IOException {
+        this.group = InetAddress.getByName(address);
+        this.port = port;
+        this.sendSocket = new DatagramSocket();
+        this.receiveSocket = new MulticastSocket(serverPort);
+        receiveSocket.setTimeToLive(0);
+        receiveSocket.joinGroup(group);
+        for (int i = 0; i < POOL_SIZE; i++) {
+            freePackets.offer(new DatagramPacket(new byte[BUFFER_SIZE], BUFFER_SIZE));
+        }
+        receiver.setDaemon(true);
+        decoder.setDaemon(true);
+    }
+
+    /**
+     * Starts receiving, the server is asked for admission right away.
+     *
+     * @param listener {@link Listener}
+     */
+    public void open(final Listener listener) {
+        this.listener = listener;
+        decoder.start();
+        receiver.start();
+        heartbeat = SCHEDULER.scheduleAtFixedRate(this::renewLease, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+        listener.onMessage(new Message(Message.Type.CONNECT, null, null));
+    }
+
+    /**
+     * Receive stage: only drains the socket into pooled packets and hands them to the decoder.
+     */
+    private void receiveMessages() {
+        DatagramPacket packet = null;
+        while (!receiveSocket.isClosed()) {
+            if (packet == null) {
+                packet = freePackets.poll();
+            }
+            final DatagramPacket target = packet != null ? packet : overflowPacket;
+            try {
+                target.setLength(BUFFER_SIZE);
+                receiveSocket.receive(target);
+            } catch (IOException e) {
+                if (!receiveSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
+            if (packet == null) {
+                receiveDrops.incrementAndGet();
+            } else if (receivedPackets.offer(packet)) {
+                packet = null;
+                LockSupport.unpark(decoder);
+            } else {
+                decodeDrops.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Decode stage: decodes received packets, returns them to the pool and notifies the listener until
+     * the transport is closed.
+     */
+    private void decodeMessages() {
+        while (!stopped) {
+            final DatagramPacket packet = receivedPackets.poll();
+            if (packet == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            final String frame = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+            freePackets.offer(packet);
+            final Message message = codec.decode(frame);
+            if (message != null) {
+                listener.onMessage(message);
+                trackLease(message);
+            }
+        }
+    }
+
+    /**
+     * Starts the lease once the server accepted the login and repeats the login once the lease has been lost.
+     *
+     * @param message {@link Message} published by the server
+     */
+    private void trackLease(final Message message) {
+        final String current = username;
+        if (current == null) {
+            return;
+        }
+        if (!leased) {
+            final boolean own = current.equals(message.getUsername());
+            leased = message.getType() == Message.Type.ACCEPTED && own;
+            if (own && (leased || message.getType() == Message.Type.REJECTED)) {
+                loginPending = false;
+            }
+        } else if (message.getUsers() != null && !message.getUsers().contains(current)) {
+            leased = false;
+            listener.onReconnecting(new IOException(String.format("Lease of %s has expired", current)));
+            listener.onMessage(new Message(Message.Type.CONNECT, null, null));
+        }
+    }
+
+    /**
+     * Renews the lease of the user on the server or repeats the login the server has not answered yet,
+     * runs periodically on the scheduler.
+     */
+    private void renewLease() {
+        final String current = username;
+        if (current == null) {
+            return;
+        }
+        if (leased) {
+            send(new Message(Message.Type.HEARTBEAT, current, null));
+        } else if (loginPending) {
+            send(new Message(Message.Type.LOGIN, current, null));
+        }
+    }
+
+    /**
+     * Queues datagram, the datagram is dropped when the queue is full.
+     * Leaving the chat is repeated, so a single lost datagram does not keep the user online until its lease expires.
+     *
+     * @param message {@link Message}
+     */
+    public void send(final Message message) {
+        if (message.getType() == Message.Type.LOGIN) {
+            leased = false;
+            loginPending = true;
+            username = message.getUsername();
+        } else if (message.getType() == Message.Type.LEFT) {
+            username = null;
+            leased = false;
+            loginPending = false;
+        }
+        final byte[] buffer = codec.encode(message).getBytes(StandardCharsets.UTF_8);
+        final int repeats = message.getType() == Message.Type.LEFT ? LEFT_REPEATS : 1;
+        for (int i = 0; i < repeats; i++) {
+            if (!outbound.offer(buffer)) {
+                sendDrops.incrementAndGet();
+            }
+        }
+        if (sendScheduled.compareAndSet(false, true)) {
+            SCHEDULER.execute(this::sendQueued);
+        }
+    }
+
+    /**
+     * Sends all queued datagrams, runs on the scheduler.
+     */
+    private void sendQueued() {
+        sendScheduled.set(false);
+        byte[] buffer;
+        while ((buffer = outbound.poll()) != null) {
+            try {
+                sendSocket.send(new DatagramPacket(buffer, buffer.length, group, port));
+            } catch (IOException e) {
+                if (!sendSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the heartbeat and closes the sockets once all queued datagrams are sent.
+     */
+    public void close() {
+        final ScheduledFuture<?> current = heartbeat;
+        if (current != null) {
+            current.cancel(false);
+        }
+        SCHEDULER.execute(() -> {
+            sendQueued();
+            receiveSocket.close();
+            sendSocket.close();
+            stopped = true;
+            LockSupport.unpark(decoder);
+            if (listener != null) {
+                listener.onClosed(null);
+            }
+            closed.complete(null);
+        });
+    }
+
+    /**
+     * Runs the action once the transport is closed, right away when it is already closed.
+     *
+     * @param action {@link Runnable}
+     */
+    public void whenClosed(final Runnable action) {
+        closed.thenRun(action);
+    }
+
+    /**
+     * Returns drop counters of the receive pipeline stages.
+     *
+     * @return {@link String}
+     */
+    public String getStats() {
+        return String.format("receive drops: %d, decode drops: %d, send drops: %d",
+                receiveDrops.get(), decodeDrops.get(), sendDrops.get());
+    }
+}
@@ -1,30 +1,51 @@
 package multicasting;
 
+import core.Codec;
+import core.Message;
+import core.MulticastCodec;
+import core.Protocol;
+import core.Roster;
+
 import java.io.IOException;
 import java.net.*;
-import java.util.HashSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Relay server which is the only authority on online users.
+ * Clients send requests to {@link Protocol#MULTICAST_CLIENT_PORT}, the server publishes accepted messages
+ * together with the current online users on {@link Protocol#MULTICAST_SERVER_PORT}.
+ *
  * @author Bartosz Śledź
  * @deprecated
  */
 public class Server {
 
-    private static final HashSet<String> USERS_NAMES = new HashSet<>();
-    private static final int MAX_USERS = 10;
-    private byte[] buf = new byte[20000];
-    private DatagramPacket dp = new DatagramPacket(buf, buf.length);
-    private static final int SEND_PORT = 4446;
-    private static final int RECEIVE_PORT = 4444;
-    private static final String ADDRESS = "230.0.0.0";
+    private static final long LEASE_MILLIS = 10000;
+
+    private final Roster roster = new Roster(Protocol.MAX_USERS, LEASE_MILLIS);
+    private final Codec codec = new MulticastCodec();
+    private final ScheduledExecutorService leaseExpiry = Executors.newSingleThreadScheduledExecutor();
+    private final byte[] buf = new byte[20000];
+    private final DatagramPacket dp = new DatagramPacket(buf, buf.length);
+    private DatagramSocket sendSocket;
+    private InetAddress group;
 
     public static void main(String args[]) throws Exception {
         new Server().start();
     }
 
     public void start() {
+        try {
+            group = InetAddress.getByName(Protocol.MULTICAST_ADDRESS);
+            sendSocket = new DatagramSocket();
+        } catch (IOException e) {
+            System.err.println(e);
+            return;
+        }
+        leaseExpiry.scheduleWithFixedDelay(this::expireUsers, LEASE_MILLIS / 2, LEASE_MILLIS / 2, TimeUnit.MILLISECONDS);
         receiveMessages();
     }
 
@@ -33,24 +54,16 @@ public class Server {
      */
     private void receiveMessages() {
         try {
-            final MulticastSocket ms = new MulticastSocket(RECEIVE_PORT);
-            ms.joinGroup(InetAddress.getByName(ADDRESS));
+            final MulticastSocket ms = new MulticastSocket(Protocol.MULTICAST_CLIENT_PORT);
+            ms.joinGroup(group);
             while (true) {
+                dp.setLength(buf.length);
                 ms.receive(dp);
-                final String msg = new String(dp.getData(), 0, dp.getLength(), "UTF-8");
+                final Message message = codec.decode(new String(dp.getData(), 0, dp.getLength(), StandardCharsets.UTF_8));
 
-                if (userLeft(msg)) {
-                    deleteUsername(msg);
-                    sendMessage(msg);
-                    continue;
+                if (message != null) {
+                    handleMessage(message, dp.getSocketAddress());
                 }
-
-                if (USERS_NAMES.size() < MAX_USERS) {
-                    saveUsername(msg);
-                    sendMessage(msg);
-                    System.out.println(msg);
-                }
-
             }
         } catch (IOException e) {
             System.err.println(e);
@@ -58,77 +71,92 @@ public class Server {
     }
 
     /**
-     * Delete username from online lsit.
+     * Applies client request to online users and publishes the result.
      *
-     * @param msg {@link String}
+     * @param message {@link Message}
+     * @param address {@link SocketAddress}
      */
-    private void deleteUsername(final String msg) {
-        final String username = getUsername(msg);
-
-        if (username != null) {
-            USERS_NAMES.remove(username);
+    private void handleMessage(final Message message, final SocketAddress address) {
+        final String username = message.getUsername();
+        switch (message.getType()) {
+            case LOGIN:
+                admit(username, address);
+                break;
+            case HEARTBEAT:
+                renew(username, address);
+                break;
+            case TEXT:
+                if (roster.renew(username, address)) {
+                    sendMessage(Message.Type.TEXT, username, message.getText());
+                    System.out.println(String.format("%s: %s", username, message.getText()));
+                }
+                break;
+            case LEFT:
+                if (roster.remove(username, address)) {
+                    sendMessage(Message.Type.LEFT, username, null);
+                }
+                break;
         }
     }
 
     /**
-     * Check user left from server.
+     * Answers admission request of the user.
      *
-     * @param msg {@link String}
-     * @return {@link boolean}
+     * @param username {@link String}
+     * @param address  {@link SocketAddress}
      */
-    private boolean userLeft(final String msg) {
-        final Pattern pattern = Pattern.compile("(.*?): left");
-        final Matcher matcher = pattern.matcher(msg);
-
-        return matcher.find();
+    private void admit(final String username, final SocketAddress address) {
+        switch (roster.admit(username, address)) {
+            case ACCEPTED:
+                sendMessage(Message.Type.ACCEPTED, username, null);
+                break;
+            case TAKEN:
+                sendMessage(Message.Type.REJECTED, username, Protocol.LOGIN_TAKEN);
+                break;
+            case LIMIT:
+                sendMessage(Message.Type.REJECTED, username, Protocol.LIMIT_REACHED);
+                break;
+        }
     }
 
     /**
-     * Send messages to clients.
+     * Renews lease of the user, heartbeats never admit. When the user is no longer online, e.g. its lease expired
+     * or the server restarted, its leaving is published again so the client logs in anew; heartbeats of a name
+     * held by another client are ignored.
      *
-     * @param msg {@link String}
+     * @param username {@link String}
+     * @param address  {@link SocketAddress}
      */
-    public void sendMessage(final String msg) {
-        try {
-            final MulticastSocket ms = new MulticastSocket(SEND_PORT);
-            ms.joinGroup(InetAddress.getByName(ADDRESS));
-            final byte[] buffer = String.format("%s%s", msg, USERS_NAMES).getBytes();
-            final DatagramPacket datagram = new DatagramPacket(buffer, buffer.length, InetAddress.getByName(ADDRESS), SEND_PORT);
-            ms.send(datagram);
-            ms.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void renew(final String username, final SocketAddress address) {
+        if (!roster.renew(username, address) && !roster.contains(username)) {
+            sendMessage(Message.Type.LEFT, username, null);
         }
     }
 
     /**
-     * Save new user.
-     *
-     * @param msg {@link String}
+     * Removes users which stopped renewing their lease.
      */
-    private void saveUsername(final String msg) {
-        final String username = getUsername(msg);
-
-        if (username != null) {
-            USERS_NAMES.add(username);
+    private void expireUsers() {
+        for (String username : roster.expire()) {
+            sendMessage(Message.Type.LEFT, username, null);
         }
     }
 
     /**
-     * Get username from user message.
+     * Send messages to clients.
      *
-     * @param msg {@link String}
-     * @return {@link String}
+     * @param type     {@link Message.Type}
+     * @param username {@link String}
+     * @param text     {@link String}
      */
-    private String getUsername(final String msg) {
-        final Pattern pattern = Pattern.compile("(.*?):");
-        final Matcher matcher = pattern.matcher(msg);
-
-        if (matcher.find()) {
-            return matcher.group(1);
+    public void sendMessage(final Message.Type type, final String username, final String text) {
+        try {
+            final byte[] buffer = codec.encode(new Message(type, username, text, roster.snapshot()))
+                    .getBytes(StandardCharsets.UTF_8);
+            sendSocket.send(new DatagramPacket(buffer, buffer.length, group, Protocol.MULTICAST_SERVER_PORT));
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-
-        return null;
     }
 
-}
\ No newline at end of file
+}
@@ -1,18 +1,20 @@
 package multicasting;
 
+import core.ChatView;
+
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * @author Bartosz Śledź
  */
-public final class UserInterface extends JFrame {
+public final class UserInterface extends JFrame implements ChatView {
 
     private JPanel contentPane;
     private JTextField sendTextArea, nickTextField;
@@ -141,9 +143,9 @@ public final class UserInterface extends JFrame {
     /**
      * Displays all users who are online.
      *
-     * @param usersSet {@link HashSet}
+     * @param usersSet {@link Set}
      */
-    public void setOnlineUsers(final HashSet<String> usersSet) {
+    public void setOnlineUsers(final Set<String> usersSet) {
         usersOnlineTextArea.setText("");
         for (String username : usersSet) {
             usersOnlineTextArea.append(username + "\n");
@@ -164,6 +166,22 @@ public final class UserInterface extends JFrame {
         }
     }
 
+    /**
+     * Nothing to update, the user is connected as soon as the window is shown.
+     */
+    public void afterConnect() {
+    }
+
+    /**
+     * Asks for another username.
+     *
+     * @return {@link boolean}
+     */
+    public boolean requestUsername() {
+        showUsernameMessageDialog();
+        return true;
+    }
+
     /**
      * Displays a window with information.
      *
@@ -1,32 +1,45 @@
 package tcpip.client;
 
+import core.ChatSession;
+import core.Protocol;
+import core.SocketOptions;
+import core.SwingChatAdapter;
+import core.Transport;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
 import javax.swing.*;
-import java.io.*;
-import java.net.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
 
 /**
  * @author Bartosz Śledź
  */
 final class Client {
 
-    private static final String CONNECT = "CONNECT";
-    private static final String ONLINE = "ONLINE";
-    private static final String MESSAGE = "MESSAGE";
-    private static final String ERROR = "ERROR";
+    private static final String NIO = "nio";
+    private static final String TLS = "tls";
 
     private final ClientUserInterface clientUserInterface;
-    private PrintWriter out;
-    private BufferedReader in;
-
-    private Client(final ClientUserInterface clientUserInterface) {
+    private final boolean nio;
+    private final boolean compression;
+    private final SocketFactory socketFactory;
+    private final SocketOptions options = SocketOptions.fromSystemProperties();
+    private ChatSession session;
+    private SwingChatAdapter adapter;
+
+    private Client(final ClientUserInterface clientUserInterface, final boolean nio, final boolean compression,
+                   final SocketFactory socketFactory) {
         this.clientUserInterface = clientUserInterface;
+        this.nio = nio;
+        this.compression = compression;
+        this.socketFactory = socketFactory;
         sendButtonListener();
         sendTextAreaListener();
         connectButtonListener();
+        exitListener();
     }
 
     /**
@@ -57,77 +70,54 @@ final class Client {
     }
 
     /**
-     * Sends message to all online users.
+     * Adds listener for exit: logs counters of the transport, the process exits once the window is closed.
      */
-    private void sendMessage() {
-        out.println(clientUserInterface.getSendText());
-        clientUserInterface.setSendText("");
+    private void exitListener() {
+        clientUserInterface.addExitListener(new WindowAdapter() {
+            public void windowClosing(final WindowEvent e) {
+                if (adapter != null) {
+                    System.out.println(adapter.getStats());
+                }
+            }
+        });
     }
 
     /**
-     * Create a new connection in new thread.
+     * Sends message to all online users.
      */
-    private void connect() {
-        new Thread(() -> {
-            try {
-                final Socket socket = new Socket(clientUserInterface.getServerAddress(), clientUserInterface.getServerPort());
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
-                while (true) {
-                    final String line = in.readLine();
-                    if (line != null) {
-                        if (line.startsWith(CONNECT)) {
-                            out.println(clientUserInterface.getUsername());
-                        } else if (line.startsWith(ONLINE)) {
-                            refreshOnlineUsers(line);
-                            clientUserInterface.afterConnect();
-                        } else if (line.startsWith(MESSAGE)) {
-                            refreshOnlineUsers(line);
-                            parseMessage(line);
-                        } else if (line.startsWith(ERROR)) {
-                            refreshOnlineUsers(line);
-                            clientUserInterface.showInfo(line);
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            } catch (NumberFormatException e) {
-                clientUserInterface.showInfo("Parse error!");
-            }
-        }).start();
+    private void sendMessage() {
+        session.send(clientUserInterface.getSendText());
+        clientUserInterface.setSendText("");
     }
 
     /**
-     * Prepares the received message from the tcpip.server for display.
-     *
-     * @param line {@link String}
+     * Create a new connection over the selected transport.
      */
-    private void parseMessage(final String line) {
-        final Pattern pattern = Pattern.compile(String.format("%s(.*?)\\[", MESSAGE));
-        final Matcher matcher = pattern.matcher(line);
-
-        if (matcher.find()) {
-            clientUserInterface.displayMessage(matcher.group(1) + "\n");
+    private void connect() {
+        try {
+            final String address = clientUserInterface.getServerAddress();
+            final int port = clientUserInterface.getServerPort();
+            final Transport transport = nio ? new NioTcpTransport(address, port, options)
+                    : new ClientConnection(address, port, compression, socketFactory, options);
+            adapter = new SwingChatAdapter(clientUserInterface, transport);
+            session = new ChatSession(transport, clientUserInterface::getUsername, adapter);
+            session.open();
+        } catch (NumberFormatException e) {
+            clientUserInterface.showInfo("Parse error!");
         }
-
     }
 
     /**
-     * Refreshes the list of active users.
+     * Starts the client, "nio" selects the non-blocking transport, "deflate" enables compression and
+     * "tls" connects the blocking transport over TLS trusting certificates from the "javax.net.ssl.trustStore" property.
+     * Socket options are read by {@link SocketOptions#fromSystemProperties()}.
      *
-     * @param line {@link String}
+     * @param args {@link String}
      */
-    private void refreshOnlineUsers(final String line) {
-        final Pattern pattern = Pattern.compile("\\[(.*?)\\]");
-        final Matcher matcher = pattern.matcher(line);
-
-        if (matcher.find()) {
-            clientUserInterface.setOnlineUsers(new HashSet<>(Arrays.asList(matcher.group(1).split(", "))));
-        }
-    }
-
     public static void main(final String[] args) {
-        SwingUtilities.invokeLater(() -> new Client(new ClientUserInterface()));
+        final List<String> options = Arrays.asList(args);
+        final SocketFactory socketFactory = options.contains(TLS) ? SSLSocketFactory.getDefault() : SocketFactory.getDefault();
+        SwingUtilities.invokeLater(() -> new Client(new ClientUserInterface(), options.contains(NIO), options.contains(Protocol.DEFLATE),
+                socketFactory));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,356 @@
+package tcpip.client;
+
+import core.Codec;
+import core.FrameCompression;
+import core.FrameSequence;
+import core.Message;
+import core.Protocol;
+import core.SocketOptions;
+import core.TcpCodec;
+import core.Transport;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocket;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Blocking TCP connection engine of the client.
+ * Sends never block the caller: frames are queued and written by a writer thread which coalesces
+ * all frames queued in the meantime into a single flush, while busy it waits up to the coalescing window of
+ * {@link SocketOptions} for more frames before flushing. A lost connection is re-established with
+ * exponential backoff; frames queued while disconnected or not written before the connection was lost are sent
+ * once the username handshake is repeated. Reconnecting stops when the first login is refused because the username
+ * is taken or the server is full, or after {@link #MAX_ATTEMPTS} attempts in a row which did not get the user
+ * welcomed. A taken username is retried once the user has been admitted, the server may still hold the session
+ * of the lost connection until it notices the connection is gone.
+ * When enabled and offered by the server, compression is accepted during the handshake, the user list of the last
+ * frame carrying one is kept as the dictionary of compressed frames, see {@link FrameCompression}.
+ * Over TLS reconnects resume the previous session, sessions are cached by the socket factory.
+ *
+ * @author Bartosz Śledź
+ */
+final class ClientConnection implements Transport {
+
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int MAX_BATCH = 256;
+    private static final long INITIAL_BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+    private static final int MAX_ATTEMPTS = 10;
+
+    private final String host;
+    private final int port;
+    private final boolean compression;
+    private final SocketFactory socketFactory;
+    private final SocketOptions options;
+    private final Codec codec = TcpCodec.forClient();
+    private final FrameSequence sequence = new FrameSequence();
+    private final BlockingDeque<String> outbound = new LinkedBlockingDeque<>(QUEUE_CAPACITY);
+    private final AtomicLong framesIn = new AtomicLong();
+    private final AtomicLong framesOut = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong drops = new AtomicLong();
+    private final AtomicLong undecompressed = new AtomicLong();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong handshakeNanos = new AtomicLong();
+    private volatile Socket socket;
+    private volatile Writer out;
+    private volatile Thread writer;
+    private volatile boolean closed;
+    private volatile boolean rejected;
+    private volatile boolean admitted;
+    private volatile boolean welcomed;
+    private volatile boolean compressionOffered;
+
+    /**
+     * @param host        {@link String}
+     * @param port        {@link int}
+     * @param compression   {@link boolean} accept compressed frames when the server offers them
+     * @param socketFactory {@link SocketFactory} plain or TLS sockets
+     * @param options       {@link SocketOptions}
+     */
+    ClientConnection(final String host, final int port, final boolean compression, final SocketFactory socketFactory,
+                     final SocketOptions options) {
+        this.host = host;
+        this.port = port;
+        this.compression = compression;
+        this.socketFactory = socketFactory;
+        this.options = options;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void open(final Listener listener) {
+        final Thread reader = new Thread(() -> connectionLoop(listener), "client-connection");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Connects, reads until the connection is lost and reconnects until closed, rejected by the server
+     * or out of attempts, attempts and backoff are reset once the user is welcomed.
+     *
+     * @param listener {@link Listener}
+     */
+    private void connectionLoop(final Listener listener) {
+        IOException cause = null;
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        int attempts = 0;
+        while (!closed && !rejected && attempts < MAX_ATTEMPTS) {
+            welcomed = false;
+            try (Socket socket = socketFactory.createSocket()) {
+                this.socket = socket;
+                options.apply(socket);
+                socket.connect(new InetSocketAddress(host, port));
+                if (socket instanceof SSLSocket) {
+                    handshake((SSLSocket) socket);
+                }
+                out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                read(socket, listener);
+                cause = new EOFException("Connection closed by server");
+            } catch (IOException e) {
+                cause = e;
+            } finally {
+                stopWriter();
+            }
+            if (welcomed) {
+                attempts = 0;
+                backoff = INITIAL_BACKOFF_MILLIS;
+            }
+            if (closed || rejected || ++attempts >= MAX_ATTEMPTS) {
+                break;
+            }
+            reconnects.incrementAndGet();
+            listener.onReconnecting(cause);
+            try {
+                Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+            } catch (InterruptedException e) {
+                break;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+        listener.onClosed(closed ? null : cause);
+    }
+
+    /**
+     * Performs the TLS handshake, resumed when the factory cached a session for the server.
+     *
+     * @param socket {@link SSLSocket}
+     */
+    private void handshake(final SSLSocket socket) throws IOException {
+        final long start = System.nanoTime();
+        socket.startHandshake();
+        handshakeNanos.addAndGet(System.nanoTime() - start);
+        handshakes.incrementAndGet();
+    }
+
+    /**
+     * Delivers received frames until the end of stream, a taken username of a repeated login ends the connection
+     * so the login is retried.
+     *
+     * @param socket   {@link Socket}
+     * @param listener {@link Listener}
+     */
+    private void read(final Socket socket, final Listener listener) throws IOException {
+        final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        sequence.reset();
+        FrameCompression.Dictionary dictionary = null;
+        String line;
+        while ((line = in.readLine()) != null) {
+            framesIn.incrementAndGet();
+            if ((line = sequence.accept(line)) == null) {
+                continue;
+            }
+            if (FrameCompression.isCompressed(line) && (line = FrameCompression.decompress(line, dictionary)) == null) {
+                undecompressed.incrementAndGet();
+                continue;
+            }
+            if (compression) {
+                final FrameCompression.Dictionary received = FrameCompression.dictionaryOf(line);
+                if (received != null) {
+                    dictionary = received;
+                }
+            }
+            final Message message = codec.decode(line);
+            if (message == null) {
+                continue;
+            }
+            if (message.getType() == Message.Type.ERROR && admitted && Protocol.LOGIN_TAKEN.equals(message.getText())) {
+                throw new IOException("Username is still held by the previous connection");
+            } else if (message.getType() == Message.Type.ERROR && isFinal(message.getText())) {
+                rejected = true;
+            } else if (message.getType() == Message.Type.ONLINE) {
+                admitted = true;
+                welcomed = true;
+            } else if (message.getType() == Message.Type.CONNECT) {
+                compressionOffered = Protocol.DEFLATE.equals(message.getText());
+            }
+            listener.onMessage(message);
+        }
+    }
+
+    /**
+     * Checks if the server refused the first login for good, other errors, e.g. a temporarily unavailable cluster,
+     * are retried by reconnecting.
+     *
+     * @param reason {@link String}
+     * @return {@link boolean}
+     */
+    private static boolean isFinal(final String reason) {
+        return Protocol.LOGIN_TAKEN.equals(reason) || Protocol.LIMIT_REACHED.equals(reason);
+    }
+
+    /**
+     * Writes queued frames, all frames queued in the meantime are flushed at once.
+     * Frames queued during the previous flush mark the connection busy, then the writer waits up to
+     * the coalescing window for another frame before flushing.
+     *
+     * @param out {@link Writer}
+     */
+    private void writeFrames(final Writer out) {
+        final List<String> batch = new ArrayList<>(MAX_BATCH);
+        final long coalesceNanos = options.getCoalesceNanos();
+        boolean busy = false;
+        try {
+            while (true) {
+                batch.add(outbound.take());
+                outbound.drainTo(batch, MAX_BATCH - 1);
+                if (busy && coalesceNanos > 0 && batch.size() < MAX_BATCH) {
+                    final String frame = outbound.poll(coalesceNanos, TimeUnit.NANOSECONDS);
+                    if (frame != null) {
+                        batch.add(frame);
+                        outbound.drainTo(batch, MAX_BATCH - batch.size());
+                        coalesced.incrementAndGet();
+                    }
+                }
+                busy = batch.size() > 1;
+                for (String frame : batch) {
+                    out.write(frame);
+                    out.write('\n');
+                }
+                out.flush();
+                framesOut.addAndGet(batch.size());
+                flushes.incrementAndGet();
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            requeue(batch);
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            requeue(batch);
+            closeSocket();
+        }
+    }
+
+    /**
+     * Puts frames which have not been written back at the head of the queue, keeping their order,
+     * frames which no longer fit are dropped.
+     *
+     * @param batch {@link List}
+     */
+    private void requeue(final List<String> batch) {
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            if (!outbound.offerFirst(batch.get(i))) {
+                drops.incrementAndGet();
+            }
+        }
+        batch.clear();
+    }
+
+    /**
+     * Sends the username right away and starts writing queued frames after it.
+     *
+     * @param frame {@link String}
+     */
+    private void login(final String frame) {
+        stopWriter();
+        try {
+            if (compression && compressionOffered) {
+                out.write(String.format("%s %s", Protocol.COMPRESS, Protocol.DEFLATE));
+                out.write('\n');
+            }
+            out.write(frame);
+            out.write('\n');
+            out.flush();
+            framesOut.incrementAndGet();
+        } catch (IOException e) {
+            closeSocket();
+            return;
+        }
+        final Writer current = out;
+        writer = new Thread(() -> writeFrames(current), "client-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void send(final Message message) {
+        final String frame = codec.encode(message);
+        if (frame == null) {
+            return;
+        }
+        if (message.getType() == Message.Type.LOGIN) {
+            login(frame);
+        } else if (!outbound.offer(frame)) {
+            drops.incrementAndGet();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() {
+        closed = true;
+        closeSocket();
+    }
+
+    private void stopWriter() {
+        final Thread current = writer;
+        if (current != null) {
+            current.interrupt();
+            try {
+                current.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writer = null;
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            final Socket current = socket;
+            if (current != null) {
+                current.close();
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getStats() {
+        final long count = handshakes.get();
+        final long flushCount = flushes.get();
+        return String.format("frames in: %d, frames out: %d, flushes: %d (%.2f frames/flush), coalesced: %d, reconnects: %d, "
+                        + "drops: %d, undecompressed: %d, handshakes: %d (avg %.2f ms), %s",
+                framesIn.get(), framesOut.get(), flushCount, flushCount > 0 ? (double) framesOut.get() / flushCount : 0.0,
+                coalesced.get(), reconnects.get(), drops.get(), undecompressed.get(),
+                count, count > 0 ? handshakeNanos.get() / 1e6 / count : 0.0, sequence.getStats());
+    }
+}
@@ -1,14 +1,17 @@
 package tcpip.client;
 
+import core.ChatView;
+
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.event.ActionListener;
-import java.util.HashSet;
+import java.awt.event.WindowAdapter;
+import java.util.Set;
 
 /**
  * @author Bartosz Śledź
  */
-final class ClientUserInterface extends JFrame {
+final class ClientUserInterface extends JFrame implements ChatView {
 
     private JTextField sendTextArea, addressTextField, portTextField, nickTextField;
     private JTextArea messagesTextArea, usersOnlineTextArea;
@@ -113,6 +116,15 @@ final class ClientUserInterface extends JFrame {
         connectBtn.addActionListener(actionListener);
     }
 
+    /**
+     * Adds listener for exit app.
+     *
+     * @param windowAdapter {@link WindowAdapter}
+     */
+    void addExitListener(final WindowAdapter windowAdapter) {
+        addWindowListener(windowAdapter);
+    }
+
     /**
      * Adds listener for send text area (enter key).
      *
@@ -163,7 +175,7 @@ final class ClientUserInterface extends JFrame {
      *
      * @param message {@link String}
      */
-    void displayMessage(final String message) {
+    public void displayMessage(final String message) {
         messagesTextArea.append(message);
     }
 
@@ -172,14 +184,14 @@ final class ClientUserInterface extends JFrame {
      *
      * @return {@link String}
      */
-    String getUsername() {
+    public String getUsername() {
         return nickTextField.getText();
     }
 
     /**
      * Blocks elements after success connection.
      */
-    void afterConnect() {
+    public void afterConnect() {
         nickTextField.setEnabled(false);
         addressTextField.setEnabled(false);
         portTextField.setEnabled(false);
@@ -209,9 +221,9 @@ final class ClientUserInterface extends JFrame {
     /**
      * Displays all users who are online.
      *
-     * @param usersSet {@link HashSet}
+     * @param usersSet {@link Set}
      */
-    void setOnlineUsers(final HashSet<String> usersSet) {
+    public void setOnlineUsers(final Set<String> usersSet) {
         usersOnlineTextArea.setText("");
         for (String username : usersSet) {
             usersOnlineTextArea.append(username + "\n");
@@ -223,7 +235,7 @@ final class ClientUserInterface extends JFrame {
      *
      * @param info {@link String}
      */
-    void showInfo(final String info) {
+    public void showInfo(final String info) {
         JOptionPane.showMessageDialog(
                 this,
                 info,
@@ -231,4 +243,13 @@ final class ClientUserInterface extends JFrame {
                 JOptionPane.INFORMATION_MESSAGE);
     }
 
+    /**
+     * Rejected login has to be retried with the connect button.
+     *
+     * @return {@link boolean}
+     */
+    public boolean requestUsername() {
+        return false;
+    }
+
 }
@@ -0,0 +1,176 @@
+package tcpip.client;
+
+import core.Codec;
+import core.FrameSequence;
+import core.SocketOptions;
+import core.Message;
+import core.TcpCodec;
+import core.Transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking TCP transport: a single selector thread connects, reads and writes,
+ * sends are queued and written once the channel is writable.
+ *
+ * @author Bartosz Śledź
+ */
+final class NioTcpTransport implements Transport {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String host;
+    private final int port;
+    private final SocketOptions options;
+    private final Codec codec = TcpCodec.forClient();
+    private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private final FrameSequence sequence = new FrameSequence();
+    private final AtomicLong framesIn = new AtomicLong();
+    private final AtomicLong framesOut = new AtomicLong();
+    private volatile Selector selector;
+    private volatile boolean closed;
+
+    /**
+     * @param host    {@link String}
+     * @param port    {@link int}
+     * @param options {@link SocketOptions} coalescing is not used, writes happen once the channel is writable
+     */
+    NioTcpTransport(final String host, final int port, final SocketOptions options) {
+        this.host = host;
+        this.port = port;
+        this.options = options;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void open(final Listener listener) {
+        new Thread(() -> {
+            IOException cause = null;
+            try (Selector selector = Selector.open(); SocketChannel channel = SocketChannel.open()) {
+                this.selector = selector;
+                channel.configureBlocking(false);
+                options.apply(channel.socket());
+                channel.connect(new InetSocketAddress(host, port));
+                final SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT);
+                while (!closed) {
+                    selector.select();
+                    if (key.isValid() && key.isConnectable() && channel.finishConnect()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                    if (key.isValid() && key.isReadable() && !read(channel, listener)) {
+                        break;
+                    }
+                    if (channel.isConnected()) {
+                        key.interestOps(write(channel) ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                cause = closed ? null : e;
+            }
+            closed = true;
+            listener.onClosed(cause);
+        }).start();
+    }
+
+    /**
+     * Reads available bytes and delivers every complete line.
+     *
+     * @param channel  {@link SocketChannel}
+     * @param listener {@link Listener}
+     * @return {@link boolean} false at the end of stream
+     */
+    private boolean read(final SocketChannel channel, final Listener listener) throws IOException {
+        readBuffer.clear();
+        final int read = channel.read(readBuffer);
+        if (read < 0) {
+            return false;
+        }
+        readBuffer.flip();
+        while (readBuffer.hasRemaining()) {
+            final byte b = readBuffer.get();
+            if (b != '\n') {
+                line.write(b);
+                continue;
+            }
+            String frame = new String(line.toByteArray(), StandardCharsets.UTF_8);
+            line.reset();
+            if (frame.endsWith("\r")) {
+                frame = frame.substring(0, frame.length() - 1);
+            }
+            framesIn.incrementAndGet();
+            if ((frame = sequence.accept(frame)) == null) {
+                continue;
+            }
+            final Message message = codec.decode(frame);
+            if (message != null) {
+                listener.onMessage(message);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes queued frames until the socket buffer is full.
+     *
+     * @param channel {@link SocketChannel}
+     * @return {@link boolean} true when the queue has been drained
+     */
+    private boolean write(final SocketChannel channel) throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = outbound.peek()) != null) {
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return false;
+            }
+            outbound.poll();
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void send(final Message message) {
+        final String frame = codec.encode(message);
+        if (frame == null) {
+            return;
+        }
+        outbound.offer(ByteBuffer.wrap((frame + "\n").getBytes(StandardCharsets.UTF_8)));
+        framesOut.incrementAndGet();
+        final Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() {
+        closed = true;
+        final Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getStats() {
+        return String.format("frames in: %d, frames out: %d, %s", framesIn.get(), framesOut.get(), sequence.getStats());
+    }
+}
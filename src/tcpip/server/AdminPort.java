@@ -0,0 +1,88 @@
+package tcpip.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Read-only admin listener bound to the loopback address. Every connection receives a report of the node
+ * and is closed, e.g. "nc localhost 9990". The report is built from snapshots published by the node, so
+ * querying it never takes a lock used by logins or broadcasts.
+ * <p>
+ * Report lines are "USERS [users]", "SESSION id name host stats" for every local session,
+ * "ROOM name count", "ERROR time message" for recent errors, "STATS counters" and "END".
+ *
+ * @author Bartosz Śledź
+ */
+final class AdminPort extends Thread {
+
+    private static final String LOBBY = "*";
+
+    private final ChatNode node;
+    private final ServerTls tls;
+    private final ServerSocketChannel serverChannel;
+
+    /**
+     * @param node {@link ChatNode}
+     * @param tls  {@link ServerTls} or null when TLS is disabled
+     * @param port {@link int}
+     */
+    AdminPort(final ChatNode node, final ServerTls tls, final int port) throws IOException {
+        super("admin-port");
+        this.node = node;
+        this.tls = tls;
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        setDaemon(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void run() {
+        while (serverChannel.isOpen()) {
+            try (SocketChannel channel = serverChannel.accept()) {
+                final ByteBuffer report = StandardCharsets.UTF_8.encode(report());
+                while (report.hasRemaining()) {
+                    channel.write(report);
+                }
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    node.recordError(String.format("admin port: %s", e));
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the report from snapshots of the node.
+     *
+     * @return {@link String}
+     */
+    private String report() {
+        final StringBuilder report = new StringBuilder();
+        final Set<String> users = node.users();
+        report.append("USERS ").append(users).append('\n');
+        for (String session : node.sessionStats()) {
+            report.append("SESSION ").append(session).append('\n');
+        }
+        report.append("ROOM ").append(LOBBY).append(' ').append(users.size()).append('\n');
+        for (String error : node.recentErrors()) {
+            report.append("ERROR ").append(error).append('\n');
+        }
+        for (String line : node.getStats().split("\n")) {
+            if (!line.isEmpty()) {
+                report.append("STATS ").append(line).append('\n');
+            }
+        }
+        if (tls != null) {
+            report.append("STATS tls ").append(tls.getStats()).append('\n');
+        }
+        return report.append("END\n").toString();
+    }
+}
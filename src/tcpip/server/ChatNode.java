@@ -0,0 +1,628 @@
+package tcpip.server;
+
+import core.Codec;
+import core.FrameCompression;
+import core.FrameSequence;
+import core.Message;
+import core.Protocol;
+import core.TcpCodec;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * State of a single chat server node: users and writers of its connections and the cluster it belongs to.
+ *
+ * @author Bartosz Śledź
+ */
+final class ChatNode {
+
+    static final int HISTORY_SIZE = 50;
+
+    private static final String CLUSTER_UNAVAILABLE = "Server is temporarily unavailable, try again later!";
+    private static final String SHUTDOWN_NOTICE = "Server is restarting, you will be reconnected.";
+    private static final int ERRORS_SIZE = 32;
+    private static final long RETURN_GRACE_MILLIS = 60000;
+    private static final long PRESENCE_WINDOW_MILLIS = 200;
+    static final int MAILBOX_QUOTA = 100;
+    private static final int MAILBOX_MEMORY_LIMIT = 1000;
+    private static final int MAX_MAILBOXES = 10000;
+    private static final long MAILBOX_EXPIRY_MILLIS = TimeUnit.DAYS.toMillis(7);
+    private static final String MAILBOX_FULL = "(not delivered, mailbox of %s is full)";
+
+    private final SessionRegistry sessions = new SessionRegistry(Protocol.MAX_USERS);
+    private final History history = new History(HISTORY_SIZE);
+    private final History errors = new History(ERRORS_SIZE);
+    private final Codec codec = TcpCodec.forServer();
+    private final FramePool frames = new FramePool();
+    private final Sequencer sequencer = new Sequencer(this);
+    private final PresenceCoalescer presence = new PresenceCoalescer(
+            changes -> deliverLocal(codec.encode(new Message(Message.Type.PRESENCE, null, changes))));
+    private final Cluster cluster;
+    private final Path statePath;
+    private final Mailboxes mailboxes;
+    private final AtomicInteger compressedSessions = new AtomicInteger();
+    private volatile Map<String, String> returningUsers = Collections.emptyMap();
+    private volatile long returnDeadline;
+
+    /**
+     * @param nodeId         {@link int}
+     * @param clusterAddress {@link InetSocketAddress} address of the inter-node listener
+     * @param peers          {@link Map} cluster addresses of the other nodes by their id, empty for a single node
+     * @param statePath      {@link Path} file with the state persisted on shutdown, mailboxes of offline users
+     *                       are kept in the directory next to it
+     */
+    ChatNode(final int nodeId, final InetSocketAddress clusterAddress, final Map<Integer, InetSocketAddress> peers,
+             final Path statePath) {
+        this.cluster = new Cluster(this, nodeId, clusterAddress, peers);
+        this.statePath = statePath;
+        this.mailboxes = new Mailboxes(statePath.resolveSibling(statePath.getFileName() + ".mailboxes"),
+                MAILBOX_QUOTA, MAILBOX_MEMORY_LIMIT, MAX_MAILBOXES, MAILBOX_EXPIRY_MILLIS);
+    }
+
+    /**
+     * Restores state persisted by the previous process and joins the cluster.
+     * Usernames of users online before the restart stay reserved for their hosts for a grace period.
+     */
+    void start() throws IOException {
+        final ServerState state = ServerState.load(statePath);
+        for (String frame : state.getHistory()) {
+            history.add(frame);
+        }
+        returningUsers = state.getHosts();
+        returnDeadline = System.currentTimeMillis() + RETURN_GRACE_MILLIS;
+        sequencer.start();
+        mailboxes.start();
+        presence.start(PRESENCE_WINDOW_MILLIS);
+        cluster.start();
+    }
+
+    /**
+     * Logs user in on this node after reserving its name in the cluster.
+     * On success the connection gets its session id and starts receiving broadcasts.
+     *
+     * @param username   {@link String}
+     * @param host       {@link String} address of the user
+     * @param connection {@link Connection}
+     * @return {@link String} reason of rejection or null when the user has been logged in
+     */
+    String login(final String username, final String host, final Connection connection) {
+        final String returningHost = returningUsers.get(username);
+        if (returningHost != null && !returningHost.equals(host) && System.currentTimeMillis() < returnDeadline) {
+            return Protocol.LOGIN_TAKEN;
+        }
+        final int sessionId = sessions.open(username, host, connection);
+        switch (sessionId) {
+            case SessionRegistry.LIMIT:
+                return Protocol.LIMIT_REACHED;
+            case SessionRegistry.TAKEN:
+                return Protocol.LOGIN_TAKEN;
+        }
+        final Boolean reserved = cluster.reserve(username);
+        if (!Boolean.TRUE.equals(reserved)) {
+            sessions.close(sessionId);
+            return reserved == null ? CLUSTER_UNAVAILABLE : Protocol.LOGIN_TAKEN;
+        }
+        connection.setSessionId(sessionId);
+        if (connection.isCompressed()) {
+            compressedSessions.incrementAndGet();
+        }
+        cluster.joined(username);
+        presence.joined(username);
+        return null;
+    }
+
+    /**
+     * Logs user of the connection out.
+     *
+     * @param connection {@link Connection}
+     */
+    void logout(final Connection connection) {
+        final String username = sessions.close(connection.getSessionId());
+        if (username != null) {
+            if (connection.isCompressed()) {
+                compressedSessions.decrementAndGet();
+            }
+            cluster.left(username);
+            presence.left(username);
+        }
+    }
+
+    /**
+     * Sends recent chat frames, messages stored while the user was offline and all online users to a newly
+     * logged in user in a single write, other users learn about it from the next presence change.
+     * The user is welcomed in the order of broadcasts and receives broadcasts sequenced after it, so every
+     * frame is received either from the history or live, exactly once. The mailbox is taken first from the owner
+     * node of the name, blocking the calling connection thread, then from this node on the mailbox thread.
+     *
+     * @param connection {@link Connection}
+     */
+    void welcome(final Connection connection) {
+        final String username = sessions.name(connection.getSessionId());
+        if (username == null) {
+            sequencer.execute(() -> welcome(connection, Collections.emptyList()));
+            return;
+        }
+        final List<String> ownerMail = cluster.takeMail(username);
+        mailboxes.take(username, mail -> {
+            final List<String> frames = new ArrayList<>(ownerMail);
+            frames.addAll(mail);
+            sequencer.execute(() -> welcome(connection, frames));
+        });
+    }
+
+    private void welcome(final Connection connection, final List<String> mail) {
+        final List<String> lines = new ArrayList<>(history.snapshot());
+        lines.addAll(mail);
+        lines.add(codec.encode(new Message(Message.Type.ONLINE, null, null, users())));
+        sendLines(connection, lines);
+        connection.markWelcomed();
+    }
+
+    /**
+     * Notifies users about the shutdown, persists state and closes all connections once their queued
+     * frames are written, connections not drained before the deadline are closed forcibly.
+     *
+     * @param drainMillis {@link long}
+     */
+    void shutdown(final long drainMillis) {
+        final long deadline = System.currentTimeMillis() + drainMillis;
+        deliverLocal(codec.encode(new Message(Message.Type.SHUTDOWN, null, SHUTDOWN_NOTICE)));
+        final CountDownLatch delivered = new CountDownLatch(1);
+        sequencer.execute(delivered::countDown);
+        try {
+            delivered.await(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            new ServerState(sessions.hosts(), history.snapshot()).save(statePath);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mailboxes.close(Math.max(1, deadline - System.currentTimeMillis()));
+        final List<Connection> closing = new ArrayList<>();
+        for (int sessionId : sessions.onlineIds()) {
+            final Connection connection = sessions.connection(sessionId);
+            if (connection != null) {
+                closing.add(connection);
+                connection.close();
+            }
+        }
+        for (Connection connection : closing) {
+            connection.awaitClosed(deadline);
+        }
+    }
+
+    /**
+     * Sends the message to a single connection.
+     *
+     * @param connection {@link Connection}
+     * @param message    {@link Message}
+     */
+    void sendToOne(final Connection connection, final Message message) {
+        sendLine(connection, codec.encode(message));
+    }
+
+    /**
+     * Sends encoded line to a single connection, compressed when the connection negotiated it.
+     *
+     * @param connection {@link Connection}
+     * @param line       {@link String}
+     */
+    private void sendLine(final Connection connection, final String line) {
+        final FrameCompression.Dictionary dictionary = connection.isCompressed() ? FrameCompression.dictionaryOf(line) : null;
+        final String compressed = connection.isCompressed() ? compress(line, dictionary, connection.getDictionary()) : null;
+        final Frame frame = frames.encode(compressed != null ? compressed : line);
+        if (connection.send(frame) && dictionary != null) {
+            connection.setDictionary(dictionary);
+        }
+        frame.release();
+    }
+
+    /**
+     * Sends encoded lines to a single connection as one frame, so they are written at once.
+     *
+     * @param connection {@link Connection}
+     * @param lines      {@link List}
+     */
+    private void sendLines(final Connection connection, final List<String> lines) {
+        final StringBuilder joined = new StringBuilder();
+        FrameCompression.Dictionary held = connection.getDictionary();
+        for (String line : lines) {
+            String compressed = null;
+            if (connection.isCompressed()) {
+                final FrameCompression.Dictionary dictionary = FrameCompression.dictionaryOf(line);
+                compressed = compress(line, dictionary, held);
+                if (dictionary != null) {
+                    held = dictionary;
+                }
+            }
+            if (joined.length() > 0) {
+                joined.append('\n');
+            }
+            joined.append(compressed != null ? compressed : line);
+        }
+        final Frame frame = frames.encode(joined.toString());
+        if (connection.send(frame) && connection.isCompressed()) {
+            connection.setDictionary(held);
+        }
+        frame.release();
+    }
+
+    /**
+     * Compresses line for a client holding the dictionary. A line carrying a user list other than the one
+     * the client holds is not compressed, its user list becomes the dictionary of the client once received.
+     *
+     * @param line       {@link String}
+     * @param dictionary {@link FrameCompression.Dictionary} of the line or null when it carries no user list
+     * @param held       {@link FrameCompression.Dictionary} held by the client or null
+     * @return {@link String} or null when the line is sent uncompressed
+     */
+    private static String compress(final String line, final FrameCompression.Dictionary dictionary,
+                                   final FrameCompression.Dictionary held) {
+        if (dictionary == null) {
+            return FrameCompression.compress(line, null);
+        }
+        return dictionary.equals(held) ? FrameCompression.compress(line, dictionary) : null;
+    }
+
+    /**
+     * Handles text sent by the user of the session. Text formatted as "@username text" goes only to that user
+     * and the sender, when the user is offline it waits in the mailbox of the user until its next login.
+     *
+     * @param sessionId {@link int}
+     * @param text      {@link String}
+     */
+    void receive(final int sessionId, final String text) {
+        final String recipient = Protocol.recipientOf(text);
+        if (recipient == null) {
+            broadcast(Message.Type.TEXT, sessionId, text);
+            return;
+        }
+        final String sender = sessions.name(sessionId);
+        final Connection senderConnection = sessions.connection(sessionId);
+        final Set<String> users = users();
+        final String frame = codec.encode(new Message(Message.Type.TEXT, sender, text, users));
+        sequencer.execute(() -> {
+            final Connection connection = localConnection(recipient);
+            if (connection != null) {
+                sendLine(connection, frame);
+            } else if (!cluster.direct(recipient, frame)) {
+                mail(recipient, frame, stored -> sequencer.execute(() -> {
+                    if (senderConnection != null) {
+                        sendLine(senderConnection, stored ? frame : codec.encode(new Message(Message.Type.TEXT, sender,
+                                String.format("%s %s", text, String.format(MAILBOX_FULL, recipient)), users)));
+                    }
+                }));
+                return;
+            }
+            if (senderConnection != null && senderConnection != connection) {
+                sendLine(senderConnection, frame);
+            }
+        });
+    }
+
+    /**
+     * Sends direct frame forwarded by another node if its recipient is logged in on this node, otherwise
+     * the recipient has just logged out and the frame waits in its mailbox.
+     *
+     * @param recipient {@link String}
+     * @param frame     {@link String}
+     */
+    void deliverDirect(final String recipient, final String frame) {
+        sequencer.execute(() -> {
+            final Connection connection = localConnection(recipient);
+            if (connection != null) {
+                sendLine(connection, frame);
+            } else {
+                mail(recipient, frame, stored -> {
+                    if (!stored) {
+                        recordError(String.format("direct message to %s dropped, mailbox is full", recipient));
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stores direct frame in the mailbox of its recipient at the owner node of the name, in the mailbox of this node
+     * when the owner cannot be reached.
+     *
+     * @param recipient {@link String}
+     * @param frame     {@link String}
+     * @param done      {@link Consumer} receives false when the mailbox is full, called on a mailbox or cluster thread
+     */
+    private void mail(final String recipient, final String frame, final Consumer<Boolean> done) {
+        cluster.mail(recipient, frame, stored -> {
+            if (stored == null) {
+                mailboxes.store(recipient, frame, done);
+            } else {
+                done.accept(stored);
+            }
+        });
+    }
+
+    /**
+     * Hands mail kept by this node while the owner of its recipients could not be reached over to the owner.
+     *
+     * @param owned {@link Predicate} accepts recipients owned by the node which has become reachable
+     */
+    void handOverMail(final Predicate<String> owned) {
+        mailboxes.takeAll(owned, (recipient, frames) -> {
+            for (String frame : frames) {
+                mail(recipient, frame, stored -> {
+                    if (!stored) {
+                        recordError(String.format("direct message to %s dropped, mailbox is full", recipient));
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stores direct frame in the mailbox of this node, asked by another node as the owner of the recipient.
+     * The frame is sent right away when the recipient has logged in on this node in the meantime.
+     *
+     * @param recipient {@link String}
+     * @param frame     {@link String}
+     * @param done      {@link Consumer} receives false when the mailbox is full, called on the sequencer or mailbox thread
+     */
+    void storeMail(final String recipient, final String frame, final Consumer<Boolean> done) {
+        sequencer.execute(() -> {
+            final Connection connection = localConnection(recipient);
+            if (connection != null) {
+                sendLine(connection, frame);
+                done.accept(true);
+            } else {
+                mailboxes.store(recipient, frame, done);
+            }
+        });
+    }
+
+    /**
+     * Takes frames stored in the mailbox of this node, asked by another node as the owner of the user.
+     *
+     * @param username {@link String}
+     * @param done     {@link Consumer} receives the frames, called on the mailbox thread
+     */
+    void takeMail(final String username, final Consumer<List<String>> done) {
+        mailboxes.take(username, done);
+    }
+
+    private Connection localConnection(final String username) {
+        final int sessionId = sessions.id(username);
+        return sessionId == NameIndex.MISSING ? null : sessions.connection(sessionId);
+    }
+
+    /**
+     * Sends the message to all online users of the cluster, the sender name is resolved from its session.
+     * The broadcast is sequenced by the node owning the room, see {@link Cluster}.
+     *
+     * @param type      {@link Message.Type}
+     * @param sessionId {@link int} session of the sender or -1 for server messages
+     * @param text      {@link String}
+     */
+    void broadcast(final Message.Type type, final int sessionId, final String text) {
+        final String username = sessionId >= 0 ? sessions.name(sessionId) : null;
+        final String frame = codec.encode(new Message(type, username, text, users()));
+        if (!cluster.publishToRoomOwner(frame)) {
+            deliverRoom(frame, 0);
+        }
+    }
+
+    /**
+     * Sequences encoded broadcast of the room on this node, it is forwarded to all peers in that order.
+     *
+     * @param line    {@link String}
+     * @param skipped {@link long} broadcasts lost on their way to this node, skipped by the sequence numbers
+     */
+    void deliverRoom(final String line, final long skipped) {
+        publish(line, true, skipped);
+    }
+
+    /**
+     * Sends encoded broadcast of the room sequenced by another node to users of this node.
+     *
+     * @param line    {@link String}
+     * @param skipped {@link long} broadcasts lost on their way to this node, skipped by the sequence numbers
+     */
+    void deliverForwarded(final String line, final long skipped) {
+        publish(line, false, skipped);
+    }
+
+    /**
+     * Sends encoded frame to users of this node in the order of the {@link Sequencer}.
+     *
+     * @param line {@link String}
+     */
+    void deliverLocal(final String line) {
+        publish(line, false, 0);
+    }
+
+    /**
+     * Encodes and, when any user of this node negotiated compression, compresses the frame on the calling
+     * thread, so the sequencer thread only numbers frames.
+     *
+     * @param line    {@link String}
+     * @param room    {@link boolean}
+     * @param skipped {@link long}
+     */
+    private void publish(final String line, final boolean room, final long skipped) {
+        final String compressed = compressedSessions.get() > 0
+                ? FrameCompression.compress(line, FrameCompression.dictionaryOf(line))
+                : null;
+        sequencer.publish(line, frames.encode(line), compressed != null ? frames.encode(compressed) : null, room, skipped);
+    }
+
+    /**
+     * Sends frame numbered by the {@link Sequencer} to welcomed users of this node. The number is prefixed to
+     * the encoded frame and the same buffer is shared by all connections, connections with compression share
+     * a single compressed frame with the number outside of its compressed body. A connection whose client does not
+     * hold the user list of the frame as its dictionary yet gets the frame uncompressed.
+     *
+     * @param sequence        {@link long}
+     * @param line            {@link String}
+     * @param frame           {@link Frame} encoded line, released here
+     * @param compressedFrame {@link Frame} encoded compressed line or null, released here
+     * @param room            {@link boolean} forward the frame to all peers
+     * @param skipped         {@link long} frames of the room lost before this one, skipped by the peers as well
+     */
+    void deliverSequenced(final long sequence, final String line, final Frame frame, final Frame compressedFrame,
+                          final boolean room, final long skipped) {
+        if (line.startsWith(Protocol.MESSAGE)) {
+            history.add(line);
+        }
+        if (room) {
+            cluster.forward(line, skipped);
+        }
+        final String prefix = FrameSequence.prefix(sequence);
+        final Frame sequenced = frames.prefixed(prefix, frame);
+        Frame compressedSequenced = null;
+        FrameCompression.Dictionary dictionary = null;
+        boolean dictionaryResolved = false;
+        for (int sessionId : sessions.onlineIds()) {
+            final Connection connection = sessions.connection(sessionId);
+            if (connection == null || !connection.isWelcomed()) {
+                continue;
+            }
+            if (!connection.isCompressed()) {
+                connection.send(sequenced);
+                continue;
+            }
+            if (!dictionaryResolved) {
+                dictionary = FrameCompression.dictionaryOf(line);
+                dictionaryResolved = true;
+            }
+            if (compressedFrame != null && (dictionary == null || dictionary.equals(connection.getDictionary()))) {
+                if (compressedSequenced == null) {
+                    compressedSequenced = frames.prefixed(prefix, compressedFrame);
+                }
+                connection.send(compressedSequenced);
+            } else if (connection.send(sequenced) && dictionary != null) {
+                connection.setDictionary(dictionary);
+            }
+        }
+        sequenced.release();
+        frame.release();
+        if (compressedSequenced != null) {
+            compressedSequenced.release();
+        }
+        if (compressedFrame != null) {
+            compressedFrame.release();
+        }
+    }
+
+    /**
+     * Publishes queued presence changes right away instead of waiting for the window, used by {@link Simulation}.
+     */
+    void flushPresence() {
+        presence.flush();
+    }
+
+    /**
+     * Delivers published frames and processes mailbox requests on the calling thread, used by {@link Simulation}
+     * instead of the sequencer and mailbox threads.
+     */
+    void flushSequencer() {
+        do {
+            sequencer.drain();
+        } while (mailboxes.drain());
+    }
+
+    /**
+     * Queues presence change of a user of another node for users of this node.
+     *
+     * @param username {@link String}
+     * @param online   {@link boolean}
+     */
+    void remoteUserChanged(final String username, final boolean online) {
+        if (online) {
+            presence.joined(username);
+        } else {
+            presence.left(username);
+        }
+    }
+
+    /**
+     * Returns users logged in on this node.
+     *
+     * @return {@link Set}
+     */
+    Set<String> localUsers() {
+        return sessions.snapshot();
+    }
+
+    /**
+     * Returns users logged in on all nodes of the cluster.
+     *
+     * @return {@link Set}
+     */
+    Set<String> users() {
+        final Set<String> remote = cluster.remoteUsers();
+        if (remote.isEmpty()) {
+            return sessions.snapshot();
+        }
+        final Set<String> users = new TreeSet<>(remote);
+        users.addAll(sessions.snapshot());
+        return users;
+    }
+
+    /**
+     * Returns host and counters of every session of this node.
+     *
+     * @return {@link List}
+     */
+    List<String> sessionStats() {
+        final List<String> stats = new ArrayList<>();
+        final Map<String, String> hosts = sessions.hosts();
+        for (int sessionId : sessions.onlineIds()) {
+            final String username = sessions.name(sessionId);
+            final Connection connection = sessions.connection(sessionId);
+            if (username != null && connection != null) {
+                stats.add(String.format("%d %s %s %s", sessionId, username, hosts.get(username), connection.getStats()));
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Remembers error for the admin port, only the most recent errors are kept.
+     *
+     * @param error {@link String}
+     */
+    void recordError(final String error) {
+        errors.add(String.format("%s %s", Instant.now(), error));
+    }
+
+    /**
+     * Returns recent errors from the oldest to the newest.
+     *
+     * @return {@link List}
+     */
+    List<String> recentErrors() {
+        return errors.snapshot();
+    }
+
+    /**
+     * Returns counters of the cluster links and mailboxes.
+     *
+     * @return {@link String}
+     */
+    String getStats() {
+        return cluster.getStats() + mailboxes.getStats() + '\n';
+    }
+}
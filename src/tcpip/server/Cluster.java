@@ -0,0 +1,502 @@
+package tcpip.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Connects chat nodes into a cluster sharing one user namespace.
+ * Every node forwards its broadcasts and presence changes to its peers over {@link PeerLink}s.
+ * Usernames are partitioned between nodes by hash, the owner node of a name is the only one
+ * which may grant its reservation and it keeps the mailbox of the name, so mail reaches its user whichever node
+ * the user logs in to. While the owner cannot be reached mail is kept by the node of the sender, which hands it
+ * over to the owner once its link connects.
+ * The inter-node listener binds the configured address only and accepts connections from peer hosts only.
+ * <p>
+ * The room is sequenced by a single node, the one with the lowest id: other nodes send their broadcasts to it
+ * and it forwards every broadcast to all peers in the order of its {@link Sequencer}, so users of all nodes
+ * receive broadcasts in the same order. While the link to the room owner is down a node sequences its own
+ * broadcasts and forwards them itself, during that time nodes may order concurrent broadcasts differently.
+ * Room lines are numbered by every {@link PeerLink}, a gap in the numbers of a peer is handed over as skipped
+ * frames, so the frames lost between nodes show up as gaps in the sequence numbers received by the users.
+ *
+ * @author Bartosz Śledź
+ */
+final class Cluster {
+
+    private static final String HELLO = "HELLO";
+    private static final String FRAME = "FRAME";
+    private static final String PUBLISH = "PUBLISH";
+    private static final String JOIN = "JOIN";
+    private static final String LEAVE = "LEAVE";
+    private static final String DIRECT = "DIRECT";
+    private static final String RESERVE = "RESERVE";
+    private static final String RESERVED = "RESERVED";
+    private static final String RELEASE = "RELEASE";
+    private static final String MAIL = "MAIL";
+    private static final String STORED = "STORED";
+    private static final String TAKE = "TAKE";
+    private static final String MAILED = "MAILED";
+    private static final long RESERVE_TIMEOUT_MILLIS = 2000;
+    private static final long MAIL_TIMEOUT_MILLIS = 2000;
+
+    private final ChatNode node;
+    private final int nodeId;
+    private final InetSocketAddress bindAddress;
+    private final Set<InetAddress> peerHosts = new HashSet<>();
+    private final int[] nodeIds;
+    private final Map<Integer, PeerLink> links = new HashMap<>();
+    private final Map<Integer, Set<String>> remoteUsers = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> roomSequences = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> reservations = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, CompletableFuture<Boolean>> pendingReservations = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Consumer<Boolean>> pendingMail = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, CompletableFuture<List<String>>> pendingTakes = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "cluster-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong requestIds = new AtomicLong();
+
+    /**
+     * @param node        {@link ChatNode}
+     * @param nodeId      {@link int}
+     * @param bindAddress {@link InetSocketAddress} address of the inter-node listener
+     * @param peers       {@link Map} cluster addresses of the other nodes by their id
+     */
+    Cluster(final ChatNode node, final int nodeId, final InetSocketAddress bindAddress,
+            final Map<Integer, InetSocketAddress> peers) {
+        this.node = node;
+        this.nodeId = nodeId;
+        this.bindAddress = bindAddress;
+        final TreeSet<Integer> ids = new TreeSet<>(peers.keySet());
+        ids.add(nodeId);
+        this.nodeIds = ids.stream().mapToInt(Integer::intValue).toArray();
+        for (Map.Entry<Integer, InetSocketAddress> peer : peers.entrySet()) {
+            links.put(peer.getKey(), new PeerLink(peer.getKey(), peer.getValue(), this));
+            if (peer.getValue().getAddress() != null) {
+                peerHosts.add(peer.getValue().getAddress());
+            }
+        }
+    }
+
+    /**
+     * Starts the inter-node listener and the links to all peers.
+     */
+    void start() throws IOException {
+        if (links.isEmpty()) {
+            return;
+        }
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.bind(bindAddress);
+        final Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    if (!peerHosts.contains(socket.getInetAddress())) {
+                        node.recordError(String.format("cluster connection from %s refused", socket.getRemoteSocketAddress()));
+                        socket.close();
+                        continue;
+                    }
+                    final Thread reader = new Thread(() -> readPeer(socket), "peer-reader");
+                    reader.setDaemon(true);
+                    reader.start();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "peer-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink link : links.values()) {
+            link.start();
+        }
+    }
+
+    /**
+     * Reserves the username in the whole cluster, asking the owner node of the name.
+     * When the owner does not answer in time it may still grant the reservation, so the name is released
+     * at the owner right away, the release follows the request on the same link.
+     *
+     * @param username {@link String}
+     * @return {@link Boolean} or null when the owner node did not answer in time
+     */
+    Boolean reserve(final String username) {
+        final int owner = owner(username);
+        if (owner == nodeId) {
+            return reservations.putIfAbsent(username, nodeId) == null;
+        }
+        final long requestId = requestIds.incrementAndGet();
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        pendingReservations.put(requestId, result);
+        try {
+            links.get(owner).send(String.format("%s %d %s", RESERVE, requestId, username));
+            return result.get(RESERVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            links.get(owner).send(String.format("%s %s", RELEASE, username));
+            return null;
+        } finally {
+            pendingReservations.remove(requestId);
+        }
+    }
+
+    /**
+     * Announces user logged in on this node.
+     *
+     * @param username {@link String}
+     */
+    void joined(final String username) {
+        sendToAll(String.format("%s %s", JOIN, username));
+    }
+
+    /**
+     * Releases the username and announces user left this node.
+     *
+     * @param username {@link String}
+     */
+    void left(final String username) {
+        reservations.remove(username, nodeId);
+        sendToAll(String.format("%s %s", LEAVE, username));
+    }
+
+    /**
+     * Forwards encoded broadcast frame sequenced by this node to all peers.
+     *
+     * @param frame   {@link String}
+     * @param skipped {@link long} frames of the room lost before this one
+     */
+    void forward(final String frame, final long skipped) {
+        for (PeerLink link : links.values()) {
+            link.sendRoom(FRAME, frame, skipped);
+        }
+    }
+
+    /**
+     * Sends encoded broadcast frame to the node sequencing the room.
+     *
+     * @param frame {@link String}
+     * @return {@link boolean} false when this node has to sequence the frame, it owns the room or the link
+     * to the owner is down
+     */
+    boolean publishToRoomOwner(final String frame) {
+        final PeerLink owner = links.get(nodeIds[0]);
+        if (owner == null || !owner.isConnected()) {
+            return false;
+        }
+        owner.sendRoom(PUBLISH, frame, 0);
+        return true;
+    }
+
+    /**
+     * Forwards encoded direct frame to the node its recipient is logged in on.
+     *
+     * @param recipient {@link String}
+     * @param frame     {@link String}
+     * @return {@link boolean} false when the recipient is not logged in on any other node
+     */
+    boolean direct(final String recipient, final String frame) {
+        for (Map.Entry<Integer, Set<String>> peer : remoteUsers.entrySet()) {
+            if (peer.getValue().contains(recipient)) {
+                links.get(peer.getKey()).send(String.format("%s %s %s", DIRECT, recipient, frame));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stores direct frame in the mailbox of its recipient at the owner node of the name.
+     *
+     * @param recipient {@link String}
+     * @param frame     {@link String}
+     * @param done      {@link Consumer} receives whether the owner stored the frame, or null when this node has to
+     *                  store it: it owns the name, the owner is not connected or did not answer in time
+     */
+    void mail(final String recipient, final String frame, final Consumer<Boolean> done) {
+        final PeerLink owner = links.get(owner(recipient));
+        if (owner == null || !owner.isConnected()) {
+            done.accept(null);
+            return;
+        }
+        final long requestId = requestIds.incrementAndGet();
+        pendingMail.put(requestId, done);
+        owner.send(String.format("%s %d %s %s", MAIL, requestId, recipient, frame));
+        timeouts.schedule(() -> {
+            final Consumer<Boolean> pending = pendingMail.remove(requestId);
+            if (pending != null) {
+                pending.accept(null);
+            }
+        }, MAIL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes frames stored for the user at the owner node of the name, blocks until the owner answers.
+     *
+     * @param username {@link String}
+     * @return {@link List} empty when this node owns the name or the owner did not answer in time, the frames
+     * then stay at the owner until the next login
+     */
+    List<String> takeMail(final String username) {
+        final PeerLink owner = links.get(owner(username));
+        if (owner == null || !owner.isConnected()) {
+            return Collections.emptyList();
+        }
+        final long requestId = requestIds.incrementAndGet();
+        final CompletableFuture<List<String>> result = new CompletableFuture<>();
+        pendingTakes.put(requestId, result);
+        try {
+            owner.send(String.format("%s %d %s", TAKE, requestId, username));
+            return result.get(MAIL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            return Collections.emptyList();
+        } finally {
+            pendingTakes.remove(requestId);
+        }
+    }
+
+    /**
+     * Returns users logged in on the other nodes.
+     *
+     * @return {@link Set}
+     */
+    Set<String> remoteUsers() {
+        if (remoteUsers.isEmpty()) {
+            return Collections.emptySet();
+        }
+        final Set<String> users = new HashSet<>();
+        for (Set<String> peerUsers : remoteUsers.values()) {
+            users.addAll(peerUsers);
+        }
+        return users;
+    }
+
+    /**
+     * Called by the link once it has connected to the peer, mail kept for users of the peer is handed over.
+     *
+     * @param peerId {@link int}
+     */
+    void linkConnected(final int peerId) {
+        node.handOverMail(username -> owner(username) == peerId);
+    }
+
+    /**
+     * Returns lines sent first on every new link: node id and all users of this node.
+     *
+     * @return {@link List}
+     */
+    List<String> handshake() {
+        final List<String> lines = new ArrayList<>();
+        lines.add(String.format("%s %d", HELLO, nodeId));
+        for (String username : node.localUsers()) {
+            lines.add(String.format("%s %s", JOIN, username));
+        }
+        return lines;
+    }
+
+    /**
+     * Returns counters of all links.
+     *
+     * @return {@link String}
+     */
+    String getStats() {
+        final StringBuilder stats = new StringBuilder();
+        for (PeerLink link : links.values()) {
+            stats.append(link.getStats()).append('\n');
+        }
+        return stats.toString();
+    }
+
+    /**
+     * Reads lines sent by a peer until its link is closed.
+     *
+     * @param socket {@link Socket}
+     */
+    private void readPeer(final Socket socket) {
+        Integer peerId = null;
+        Set<String> users = null;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                final int separator = line.indexOf(' ');
+                final String command = separator < 0 ? line : line.substring(0, separator);
+                final String argument = separator < 0 ? "" : line.substring(separator + 1);
+                if (HELLO.equals(command)) {
+                    peerId = Integer.valueOf(argument);
+                    users = ConcurrentHashMap.newKeySet();
+                    remoteUsers.put(peerId, users);
+                } else if (peerId != null) {
+                    handle(peerId, users, command, argument);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+        } finally {
+            if (peerId != null) {
+                peerLost(peerId, users);
+            }
+        }
+    }
+
+    /**
+     * Applies single command received from a peer.
+     *
+     * @param peerId    {@link int}
+     * @param peerUsers {@link Set} users of the peer
+     * @param command   {@link String}
+     * @param argument  {@link String}
+     */
+    private void handle(final int peerId, final Set<String> peerUsers, final String command, final String argument) {
+        switch (command) {
+            case FRAME: {
+                final int separator = argument.indexOf(' ');
+                node.deliverForwarded(argument.substring(separator + 1), missedRoomLines(peerId, argument.substring(0, separator)));
+                break;
+            }
+            case PUBLISH: {
+                final int separator = argument.indexOf(' ');
+                node.deliverRoom(argument.substring(separator + 1), missedRoomLines(peerId, argument.substring(0, separator)));
+                break;
+            }
+            case DIRECT: {
+                final int separator = argument.indexOf(' ');
+                node.deliverDirect(argument.substring(0, separator), argument.substring(separator + 1));
+                break;
+            }
+            case JOIN:
+                if (owner(argument) == nodeId) {
+                    reservations.putIfAbsent(argument, peerId);
+                }
+                peerUsers.add(argument);
+                node.remoteUserChanged(argument, true);
+                break;
+            case LEAVE:
+                reservations.remove(argument, peerId);
+                if (peerUsers.remove(argument)) {
+                    node.remoteUserChanged(argument, false);
+                }
+                break;
+            case RESERVE: {
+                final int separator = argument.indexOf(' ');
+                final String username = argument.substring(separator + 1);
+                final Integer holder = reservations.putIfAbsent(username, peerId);
+                final boolean granted = holder == null || holder == peerId;
+                links.get(peerId).send(String.format("%s %s %b", RESERVED, argument.substring(0, separator), granted));
+                break;
+            }
+            case RELEASE:
+                reservations.remove(argument, peerId);
+                break;
+            case MAIL: {
+                final String[] request = argument.split(" ", 3);
+                node.storeMail(request[1], request[2],
+                        stored -> links.get(peerId).send(String.format("%s %s %b", STORED, request[0], stored)));
+                break;
+            }
+            case STORED: {
+                final String[] result = argument.split(" ");
+                final Consumer<Boolean> pending = pendingMail.remove(Long.valueOf(result[0]));
+                if (pending != null) {
+                    pending.accept(Boolean.valueOf(result[1]));
+                }
+                break;
+            }
+            case TAKE: {
+                final int separator = argument.indexOf(' ');
+                node.takeMail(argument.substring(separator + 1),
+                        frames -> links.get(peerId).send(mailed(argument.substring(0, separator), frames)));
+                break;
+            }
+            case MAILED: {
+                final String[] result = argument.split(" ");
+                final CompletableFuture<List<String>> pending = pendingTakes.get(Long.valueOf(result[0]));
+                if (pending != null) {
+                    final List<String> frames = new ArrayList<>(result.length - 1);
+                    for (int i = 1; i < result.length; i++) {
+                        frames.add(new String(Base64.getDecoder().decode(result[i]), StandardCharsets.UTF_8));
+                    }
+                    pending.complete(frames);
+                }
+                break;
+            }
+            case RESERVED: {
+                final String[] result = argument.split(" ");
+                final CompletableFuture<Boolean> pending = pendingReservations.get(Long.valueOf(result[0]));
+                if (pending != null) {
+                    pending.complete(Boolean.valueOf(result[1]));
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns number of room lines of the peer lost before the received one, the numbers of a peer go on across
+     * reconnects and start anew only when the peer restarts.
+     *
+     * @param peerId   {@link int}
+     * @param sequence {@link String} number of the received room line
+     * @return {@link long}
+     */
+    private long missedRoomLines(final int peerId, final String sequence) {
+        final long received = Long.parseLong(sequence);
+        final Long previous = roomSequences.put(peerId, received);
+        return previous != null && received > previous ? received - previous - 1 : 0;
+    }
+
+    /**
+     * Forgets users and reservations of a peer whose link has been closed.
+     *
+     * @param peerId    {@link int}
+     * @param peerUsers {@link Set} users of the peer known through the closed link
+     */
+    private void peerLost(final int peerId, final Set<String> peerUsers) {
+        if (!remoteUsers.remove(peerId, peerUsers)) {
+            return;
+        }
+        reservations.values().removeIf(holder -> holder == peerId);
+        for (String username : peerUsers) {
+            node.remoteUserChanged(username, false);
+        }
+    }
+
+    /**
+     * Formats answer to a take request, every frame is encoded as Base64 so the frames fit a single line.
+     *
+     * @param requestId {@link String}
+     * @param frames    {@link List}
+     * @return {@link String}
+     */
+    private static String mailed(final String requestId, final List<String> frames) {
+        final StringBuilder line = new StringBuilder(MAILED).append(' ').append(requestId);
+        for (String frame : frames) {
+            line.append(' ').append(Base64.getEncoder().encodeToString(frame.getBytes(StandardCharsets.UTF_8)));
+        }
+        return line.toString();
+    }
+
+    private void sendToAll(final String line) {
+        for (PeerLink link : links.values()) {
+            link.send(line);
+        }
+    }
+
+    /**
+     * Returns id of the node owning the username.
+     *
+     * @param username {@link String}
+     * @return {@link int}
+     */
+    private int owner(final String username) {
+        return nodeIds[Math.floorMod(username.hashCode(), nodeIds.length)];
+    }
+}
@@ -0,0 +1,320 @@
+package tcpip.server;
+
+import core.FrameCompression;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outgoing side of a client connection. Frames are queued by any thread and written by the connection thread,
+ * all frames queued in the meantime are written with a single gathering write. While the connection is busy
+ * the writer waits up to the coalescing window for more frames, see {@link core.SocketOptions}.
+ * The queue is bounded by the bytes of its frames, so a slow client pins a bounded amount of frame buffers.
+ *
+ * @author Bartosz Śledź
+ */
+final class Connection extends Thread {
+
+    private static final long MAX_QUEUED_BYTES = 1 << 20;
+    private static final int MAX_GATHER = 64;
+    private static final Frame CLOSE = new Frame(ByteBuffer.allocate(0), null);
+
+    private final GatheringByteChannel channel;
+    private final long coalesceNanos;
+    private final BlockingQueue<Frame> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final long connectedAt = System.currentTimeMillis();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong framesOut = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong drops = new AtomicLong();
+    private volatile boolean compressed;
+    private volatile FrameCompression.Dictionary dictionary;
+    private volatile boolean welcomed;
+    private volatile int sessionId = -1;
+    private boolean busy;
+
+    /**
+     * @param channel       {@link GatheringByteChannel} socket channel or TLS over it
+     * @param coalesceNanos {@link long} how long a busy writer waits for more frames, 0 writes right away
+     */
+    Connection(final GatheringByteChannel channel, final long coalesceNanos) {
+        super("connection-writer");
+        this.channel = channel;
+        this.coalesceNanos = coalesceNanos;
+        setDaemon(true);
+    }
+
+    /**
+     * Queues frame for the client, the frame is dropped when the client is too far behind.
+     * A single frame larger than the limit is still queued when nothing else is queued.
+     *
+     * @param frame {@link Frame}
+     * @return {@link boolean} false when the frame has been dropped
+     */
+    boolean send(final Frame frame) {
+        final long queued = queuedBytes.addAndGet(frame.size());
+        if (queued > MAX_QUEUED_BYTES && queued != frame.size()) {
+            queuedBytes.addAndGet(-frame.size());
+            drops.incrementAndGet();
+            return false;
+        }
+        frame.retain();
+        queue.offer(frame);
+        return true;
+    }
+
+    /**
+     * Counts bytes read from the client.
+     *
+     * @param in {@link InputStream} incoming side of the connection
+     * @return {@link InputStream}
+     */
+    InputStream countReads(final InputStream in) {
+        return new FilterInputStream(in) {
+            public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+                final int count = super.read(bytes, offset, length);
+                if (count > 0) {
+                    bytesIn.addAndGet(count);
+                }
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Returns id of the session logged in over this connection.
+     *
+     * @return {@link int} or -1 before login
+     */
+    int getSessionId() {
+        return sessionId;
+    }
+
+    void setSessionId(final int sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    /**
+     * Marks the connection as receiving broadcasts, set once the user received history and online users.
+     */
+    void markWelcomed() {
+        welcomed = true;
+    }
+
+    boolean isWelcomed() {
+        return welcomed;
+    }
+
+    /**
+     * Enables compression of frames negotiated during the handshake.
+     */
+    void enableCompression() {
+        compressed = true;
+    }
+
+    /**
+     * Checks if the client accepts compressed frames.
+     *
+     * @return {@link boolean}
+     */
+    boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Returns compression dictionary held by the client, the user list of the last frame carrying one.
+     *
+     * @return {@link FrameCompression.Dictionary} or null before the first such frame
+     */
+    FrameCompression.Dictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Records compression dictionary of a frame carrying a user list queued for the client,
+     * set in the order the frames are queued in.
+     *
+     * @param dictionary {@link FrameCompression.Dictionary}
+     */
+    void setDictionary(final FrameCompression.Dictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Closes the connection once all queued frames are written.
+     */
+    void close() {
+        queue.offer(CLOSE);
+    }
+
+    /**
+     * Waits until the connection is closed, the connection is closed forcibly after the deadline.
+     *
+     * @param deadline {@link long} time in milliseconds
+     */
+    void awaitClosed(final long deadline) {
+        try {
+            join(Math.max(1, deadline - System.currentTimeMillis()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (isAlive()) {
+            closeChannel();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void run() {
+        final List<Frame> batch = new ArrayList<>(MAX_GATHER);
+        final ByteBuffer[] views = new ByteBuffer[MAX_GATHER];
+        try {
+            do {
+                batch.add(queue.take());
+                coalesce(batch);
+            } while (writeBatch(batch, views));
+        } catch (IOException | InterruptedException e) {
+            for (Frame frame : batch) {
+                dequeued(frame);
+            }
+        } finally {
+            closeChannel();
+            Frame frame;
+            while ((frame = queue.poll()) != null) {
+                dequeued(frame);
+            }
+        }
+    }
+
+    /**
+     * Writes all queued frames on the calling thread instead of the connection thread, used by {@link Simulation}.
+     */
+    void flush() throws IOException {
+        final List<Frame> batch = new ArrayList<>(MAX_GATHER);
+        final ByteBuffer[] views = new ByteBuffer[MAX_GATHER];
+        Frame frame;
+        try {
+            while ((frame = queue.poll()) != null) {
+                batch.add(frame);
+                if (!writeBatch(batch, views)) {
+                    closeChannel();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            for (Frame pending : batch) {
+                dequeued(pending);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Waits up to the coalescing window for another frame when the connection is busy.
+     *
+     * @param batch {@link List}
+     */
+    private void coalesce(final List<Frame> batch) throws InterruptedException {
+        if (!busy || coalesceNanos == 0 || !queue.isEmpty()) {
+            return;
+        }
+        final Frame frame = queue.poll(coalesceNanos, TimeUnit.NANOSECONDS);
+        if (frame != null) {
+            batch.add(frame);
+            coalesced.incrementAndGet();
+        }
+    }
+
+    /**
+     * Writes the taken frame together with frames queued in the meantime.
+     *
+     * @param batch {@link List} holding the taken frame, emptied once written
+     * @param views {@link ByteBuffer}
+     * @return {@link boolean} false when the connection has to be closed
+     */
+    private boolean writeBatch(final List<Frame> batch, final ByteBuffer[] views) throws IOException {
+        queue.drainTo(batch, MAX_GATHER - batch.size());
+        busy = batch.size() > 1;
+        int count = 0;
+        boolean close = false;
+        for (Frame frame : batch) {
+            if (frame == CLOSE) {
+                close = true;
+                break;
+            }
+            views[count++] = frame.view();
+        }
+        write(views, count);
+        framesOut.addAndGet(count);
+        batches.incrementAndGet();
+        for (Frame frame : batch) {
+            dequeued(frame);
+        }
+        batch.clear();
+        return !close;
+    }
+
+    /**
+     * Releases frame taken from the queue.
+     *
+     * @param frame {@link Frame}
+     */
+    private void dequeued(final Frame frame) {
+        queuedBytes.addAndGet(-frame.size());
+        frame.release();
+    }
+
+    /**
+     * Writes all views with gathering writes.
+     *
+     * @param views {@link ByteBuffer}
+     * @param count {@link int}
+     */
+    private void write(final ByteBuffer[] views, final int count) throws IOException {
+        int offset = 0;
+        while (offset < count) {
+            bytesOut.addAndGet(channel.write(views, offset, count - offset));
+            writes.incrementAndGet();
+            while (offset < count && !views[offset].hasRemaining()) {
+                views[offset++] = null;
+            }
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Returns counters of the connection.
+     *
+     * @return {@link String}
+     */
+    String getStats() {
+        final long frameCount = framesOut.get();
+        final long batchCount = batches.get();
+        return String.format("since: %s, bytes in: %d, bytes out: %d, frames: %d, batches: %d (%.2f frames/batch), "
+                        + "writes: %d, coalesced: %d, queued: %d (%d bytes), drops: %d",
+                Instant.ofEpochMilli(connectedAt), bytesIn.get(), bytesOut.get(), frameCount, batchCount,
+                batchCount > 0 ? (double) frameCount / batchCount : 0.0, writes.get(), coalesced.get(), queue.size(),
+                queuedBytes.get(), drops.get());
+    }
+}
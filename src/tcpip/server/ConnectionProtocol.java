@@ -0,0 +1,80 @@
+package tcpip.server;
+
+import core.Codec;
+import core.Message;
+import core.Protocol;
+import core.TcpCodec;
+
+/**
+ * Server side of the TCP chat protocol for a single client connection, shared by {@link Server} reading
+ * a socket and {@link Simulation} stepping in-memory connections.
+ * The connection is offered compression, the client may accept it before sending its username, the username
+ * logs the user in and every later line is text sent by the user.
+ *
+ * @author Bartosz Śledź
+ */
+final class ConnectionProtocol {
+
+    private static final Codec CODEC = TcpCodec.forServer();
+    private static final String ACCEPT_COMPRESSION = String.format("%s %s", Protocol.COMPRESS, Protocol.DEFLATE);
+
+    private final ChatNode node;
+    private final Connection connection;
+    private final String host;
+    private boolean loggedIn;
+
+    /**
+     * @param node       {@link ChatNode}
+     * @param connection {@link Connection}
+     * @param host       {@link String} address of the client
+     */
+    ConnectionProtocol(final ChatNode node, final Connection connection, final String host) {
+        this.node = node;
+        this.connection = connection;
+        this.host = host;
+    }
+
+    /**
+     * Greets the client and offers compression.
+     */
+    void open() {
+        node.sendToOne(connection, new Message(Message.Type.CONNECT, null, Protocol.DEFLATE));
+    }
+
+    /**
+     * Handles line received from the client.
+     *
+     * @param line {@link String}
+     * @return {@link String} reason of a rejected login, the connection has to be closed then, or null
+     */
+    String handle(final String line) {
+        if (loggedIn) {
+            node.receive(connection.getSessionId(), CODEC.decode(line).getText());
+            return null;
+        }
+        if (line.equals(ACCEPT_COMPRESSION) && !connection.isCompressed()) {
+            connection.enableCompression();
+            return null;
+        }
+        final String error = node.login(line, host, connection);
+        if (error != null) {
+            node.recordError(String.format("login %s rejected: %s", line, error));
+            node.sendToOne(connection, new Message(Message.Type.ERROR, null, error));
+            return error;
+        }
+        loggedIn = true;
+        node.welcome(connection);
+        return null;
+    }
+
+    /**
+     * Ends the connection like the end of stream does, the user is logged out and the connection is closed
+     * once its queued frames are written.
+     */
+    void close() {
+        if (connection.getSessionId() >= 0) {
+            node.logout(connection);
+        }
+        connection.close();
+    }
+}
@@ -0,0 +1,62 @@
+package tcpip.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encoded outgoing frame shared by all its recipients.
+ * The frame is reference counted, its buffer goes back to the {@link FramePool} once every holder released it.
+ *
+ * @author Bartosz Śledź
+ */
+final class Frame {
+
+    private final ByteBuffer backing;
+    private final ByteBuffer data;
+    private final FramePool pool;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * @param backing {@link ByteBuffer} flipped buffer holding the encoded frame
+     * @param pool    {@link FramePool} or null when the buffer is not pooled
+     */
+    Frame(final ByteBuffer backing, final FramePool pool) {
+        this.backing = backing;
+        this.data = backing.asReadOnlyBuffer();
+        this.pool = pool;
+    }
+
+    /**
+     * Returns read-only view of the frame with its own position, the bytes are not copied.
+     *
+     * @return {@link ByteBuffer}
+     */
+    ByteBuffer view() {
+        return data.duplicate();
+    }
+
+    /**
+     * Returns the number of bytes of the frame.
+     *
+     * @return {@link int}
+     */
+    int size() {
+        return data.remaining();
+    }
+
+    /**
+     * Adds reference for another holder.
+     */
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    /**
+     * Releases reference of a holder, the last release returns the buffer to the pool.
+     */
+    void release() {
+        if (references.decrementAndGet() == 0 && pool != null) {
+            pool.release(backing);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package tcpip.server;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes outgoing lines directly into pooled direct buffers sized by the length of the line.
+ * Buffers come in power of two size classes from 128 bytes to 64 KB and are sliced from direct slabs of 64 KB,
+ * so a typical chat line takes a small buffer and a slab is allocated only when its class has no free buffer
+ * left. Every class keeps at most 1 MB of free buffers, lines larger than a slab get a heap buffer which
+ * is not pooled.
+ *
+ * @author Bartosz Śledź
+ */
+final class FramePool {
+
+    private static final int MIN_SHIFT = 7;
+    private static final int MIN_SIZE = 1 << MIN_SHIFT;
+    private static final int SLAB_SHIFT = 16;
+    private static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+    private static final int MAX_POOLED_BYTES = 1 << 20;
+    private static final ThreadLocal<CharsetEncoder> ENCODER = ThreadLocal.withInitial(() -> StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+    private final SizeClass[] classes = new SizeClass[SLAB_SHIFT - MIN_SHIFT + 1];
+
+    /**
+     * Free buffers of one size.
+     */
+    private static final class SizeClass {
+        private final int size;
+        private final int maxPooled;
+        private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        private SizeClass(final int size) {
+            this.size = size;
+            this.maxPooled = MAX_POOLED_BYTES / size;
+        }
+    }
+
+    FramePool() {
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(MIN_SIZE << i);
+        }
+    }
+
+    /**
+     * Encodes line terminated by a new line.
+     *
+     * @param line {@link String}
+     * @return {@link Frame} holding one reference for the caller
+     */
+    Frame encode(final String line) {
+        final int length = encodedLength(line) + 1;
+        if (length > SLAB_SIZE) {
+            return unpooled(line);
+        }
+        final ByteBuffer buffer = acquire(length);
+        final CharsetEncoder encoder = ENCODER.get().reset();
+        final CoderResult result = encoder.encode(CharBuffer.wrap(line), buffer, true);
+        if (result.isOverflow() || !buffer.hasRemaining()) {
+            release(buffer);
+            return unpooled(line);
+        }
+        buffer.put((byte) '\n').flip();
+        return new Frame(buffer, this);
+    }
+
+    /**
+     * Copies encoded frame behind an ASCII prefix, the frame is not encoded again.
+     *
+     * @param prefix {@link String} ASCII only
+     * @param body   {@link Frame}
+     * @return {@link Frame} holding one reference for the caller
+     */
+    Frame prefixed(final String prefix, final Frame body) {
+        final int length = prefix.length() + body.size();
+        final ByteBuffer buffer = length > SLAB_SIZE ? ByteBuffer.allocate(length) : acquire(length);
+        for (int i = 0; i < prefix.length(); i++) {
+            buffer.put((byte) prefix.charAt(i));
+        }
+        buffer.put(body.view()).flip();
+        return new Frame(buffer, buffer.isDirect() ? this : null);
+    }
+
+    private static Frame unpooled(final String line) {
+        final byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer large = ByteBuffer.allocate(bytes.length + 1);
+        large.put(bytes).put((byte) '\n').flip();
+        return new Frame(large, null);
+    }
+
+    /**
+     * Takes free buffer of the smallest class holding the given number of bytes, slicing a new slab when
+     * the class has no free buffer.
+     *
+     * @param length {@link int}
+     * @return {@link ByteBuffer}
+     */
+    private ByteBuffer acquire(final int length) {
+        final SizeClass sizeClass = classes[classIndex(length)];
+        final ByteBuffer buffer = sizeClass.free.poll();
+        if (buffer != null) {
+            sizeClass.pooled.decrementAndGet();
+            return buffer;
+        }
+        final ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+        for (int offset = sizeClass.size; offset < SLAB_SIZE && sizeClass.pooled.get() < sizeClass.maxPooled;
+             offset += sizeClass.size) {
+            slab.limit(offset + sizeClass.size).position(offset);
+            sizeClass.free.offer(slab.slice());
+            sizeClass.pooled.incrementAndGet();
+        }
+        slab.limit(sizeClass.size).position(0);
+        return slab.slice();
+    }
+
+    /**
+     * Returns buffer to the pool of its class.
+     *
+     * @param buffer {@link ByteBuffer}
+     */
+    void release(final ByteBuffer buffer) {
+        final SizeClass sizeClass = classes[classIndex(buffer.capacity())];
+        if (sizeClass.pooled.incrementAndGet() > sizeClass.maxPooled) {
+            sizeClass.pooled.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        sizeClass.free.offer(buffer);
+    }
+
+    private static int classIndex(final int length) {
+        final int shift = 32 - Integer.numberOfLeadingZeros(Math.max(length, MIN_SIZE) - 1);
+        return shift - MIN_SHIFT;
+    }
+
+    /**
+     * Returns number of bytes of the line encoded as UTF-8, malformed surrogates are replaced by a single byte.
+     *
+     * @param line {@link String}
+     * @return {@link int}
+     */
+    private static int encodedLength(final String line) {
+        int length = 0;
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < line.length() && Character.isLowSurrogate(line.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,47 @@
+package tcpip.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free ring of the most recent encoded chat frames.
+ *
+ * @author Bartosz Śledź
+ */
+final class History {
+
+    private final AtomicReferenceArray<String> frames;
+    private final AtomicLong next = new AtomicLong();
+
+    History(final int capacity) {
+        this.frames = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Adds frame, overwriting the oldest one when the ring is full.
+     *
+     * @param frame {@link String}
+     */
+    void add(final String frame) {
+        frames.set((int) (next.getAndIncrement() % frames.length()), frame);
+    }
+
+    /**
+     * Returns frames from the oldest to the newest.
+     *
+     * @return {@link List}
+     */
+    List<String> snapshot() {
+        final long end = next.get();
+        final List<String> snapshot = new ArrayList<>(frames.length());
+        for (long i = Math.max(0, end - frames.length()); i < end; i++) {
+            final String frame = frames.get((int) (i % frames.length()));
+            if (frame != null) {
+                snapshot.add(frame);
+            }
+        }
+        return snapshot;
+    }
+}
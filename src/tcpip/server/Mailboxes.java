@@ -0,0 +1,448 @@
+package tcpip.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Store-and-forward mailboxes of users who are offline. Every user has a quota of stored frames, every frame
+ * expires after a while and the number of mailboxes is limited, so mistyped recipients cannot fill the disk.
+ * At most a limited number of frames is kept in memory, when the limit is exceeded the largest mailbox
+ * is appended to its file in the mailbox directory, one "expiry frame" line per frame.
+ * Mailbox is taken as a whole once its user logs in.
+ * <p>
+ * All mailboxes are read and written by the mailbox thread only, requests are queued and their results are
+ * passed to callbacks on that thread, so file I/O never blocks the {@link Sequencer}. Expired frames of all
+ * mailboxes are dropped once per sweep period.
+ *
+ * @author Bartosz Śledź
+ */
+final class Mailboxes extends Thread {
+
+    private static final String EXTENSION = ".mbox";
+    private static final long SWEEP_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final class Mail {
+        private final long expiry;
+        private final String frame;
+
+        private Mail(final long expiry, final String frame) {
+            this.expiry = expiry;
+            this.frame = frame;
+        }
+    }
+
+    private final Path directory;
+    private final int quota;
+    private final int memoryLimit;
+    private final int maxMailboxes;
+    private final long expiryMillis;
+    private final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+    private final Map<String, Deque<Mail>> memory = new HashMap<>();
+    private final Map<String, Integer> counts = new HashMap<>();
+    private final AtomicInteger mailboxes = new AtomicInteger();
+    private final AtomicInteger inMemory = new AtomicInteger();
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * @param directory    {@link Path} directory of spilled mailboxes
+     * @param quota        {@link int} frames stored per user
+     * @param memoryLimit  {@link int} frames of all users kept in memory
+     * @param maxMailboxes {@link int} users with stored frames
+     * @param expiryMillis {@link long}
+     */
+    Mailboxes(final Path directory, final int quota, final int memoryLimit, final int maxMailboxes,
+              final long expiryMillis) {
+        super("mailboxes");
+        this.directory = directory;
+        this.quota = quota;
+        this.memoryLimit = memoryLimit;
+        this.maxMailboxes = maxMailboxes;
+        this.expiryMillis = expiryMillis;
+        setDaemon(true);
+        tasks.offer(() -> mailboxes.set(spilledUsers().size()));
+    }
+
+    /**
+     * Stores frame for the user.
+     *
+     * @param username {@link String}
+     * @param frame    {@link String}
+     * @param done     {@link Consumer} receives false when the mailbox of the user is full or there are too many
+     *                 mailboxes, called on the mailbox thread
+     */
+    void store(final String username, final String frame, final Consumer<Boolean> done) {
+        tasks.offer(() -> done.accept(store(username, frame)));
+    }
+
+    /**
+     * Removes frames stored for the user which have not expired.
+     *
+     * @param username {@link String}
+     * @param done     {@link Consumer} receives the frames from the oldest to the newest, called on the mailbox thread
+     */
+    void take(final String username, final Consumer<List<String>> done) {
+        tasks.offer(() -> done.accept(take(username)));
+    }
+
+    /**
+     * Removes frames stored for every user accepted by the filter which have not expired.
+     *
+     * @param filter {@link Predicate}
+     * @param done   {@link BiConsumer} receives every user with frames and its frames from the oldest to the newest,
+     *               called on the mailbox thread
+     */
+    void takeAll(final Predicate<String> filter, final BiConsumer<String, List<String>> done) {
+        tasks.offer(() -> {
+            final Set<String> usernames = spilledUsers();
+            usernames.addAll(counts.keySet());
+            for (String username : usernames) {
+                if (filter.test(username)) {
+                    final List<String> frames = take(username);
+                    if (!frames.isEmpty()) {
+                        done.accept(username, frames);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes all mailboxes kept in memory to their files after the queued requests and stops the mailbox thread,
+     * e.g. on shutdown.
+     *
+     * @param timeoutMillis {@link long}
+     */
+    void close(final long timeoutMillis) {
+        tasks.offer(() -> {
+            spillAll();
+            closed = true;
+        });
+        if (!isAlive()) {
+            drain();
+            return;
+        }
+        try {
+            join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void run() {
+        long nextSweep = System.currentTimeMillis() + SWEEP_MILLIS;
+        while (!closed) {
+            try {
+                final Runnable task = tasks.poll(Math.max(1, nextSweep - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (task != null) {
+                    run(task);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (System.currentTimeMillis() >= nextSweep) {
+                sweep();
+                nextSweep = System.currentTimeMillis() + SWEEP_MILLIS;
+            }
+        }
+    }
+
+    /**
+     * Processes queued requests on the calling thread instead of the mailbox thread, used by {@link Simulation}.
+     *
+     * @return {@link boolean} true when any request was processed
+     */
+    boolean drain() {
+        boolean processed = false;
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            run(task);
+            processed = true;
+        }
+        return processed;
+    }
+
+    private static void run(final Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean store(final String username, final String frame) {
+        int count = count(username);
+        if (count >= quota) {
+            count = purgeExpired(username);
+        }
+        if (count >= quota || count == 0 && mailboxes.get() >= maxMailboxes) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        if (count == 0) {
+            mailboxes.incrementAndGet();
+        }
+        memory.computeIfAbsent(username, name -> new ArrayDeque<>())
+                .add(new Mail(System.currentTimeMillis() + expiryMillis, frame));
+        counts.put(username, count + 1);
+        stored.incrementAndGet();
+        if (inMemory.incrementAndGet() > memoryLimit) {
+            spillLargest();
+        }
+        return true;
+    }
+
+    private List<String> take(final String username) {
+        final List<String> frames = new ArrayList<>();
+        final boolean spilledFile = Files.exists(file(username));
+        if (counts.remove(username) == null && !spilledFile) {
+            return frames;
+        }
+        mailboxes.decrementAndGet();
+        final long now = System.currentTimeMillis();
+        if (spilledFile) {
+            for (Mail mail : readSpilled(username)) {
+                add(frames, mail, now);
+            }
+            try {
+                Files.deleteIfExists(file(username));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        final Deque<Mail> mails = memory.remove(username);
+        if (mails != null) {
+            inMemory.addAndGet(-mails.size());
+            for (Mail mail : mails) {
+                add(frames, mail, now);
+            }
+        }
+        delivered.addAndGet(frames.size());
+        return frames;
+    }
+
+    private void add(final List<String> frames, final Mail mail, final long now) {
+        if (mail.expiry > now) {
+            frames.add(mail.frame);
+        } else {
+            expired.incrementAndGet();
+        }
+    }
+
+    private void spillAll() {
+        for (String username : new ArrayList<>(memory.keySet())) {
+            spill(username);
+        }
+    }
+
+    private void spillLargest() {
+        String largest = null;
+        int size = 0;
+        for (Map.Entry<String, Deque<Mail>> mailbox : memory.entrySet()) {
+            if (mailbox.getValue().size() > size) {
+                largest = mailbox.getKey();
+                size = mailbox.getValue().size();
+            }
+        }
+        if (largest != null) {
+            spill(largest);
+        }
+    }
+
+    /**
+     * Appends mailbox kept in memory to its file, the mailbox stays in memory when it cannot be written.
+     *
+     * @param username {@link String}
+     */
+    private void spill(final String username) {
+        final Deque<Mail> mails = memory.get(username);
+        try {
+            write(username, mails, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        memory.remove(username);
+        inMemory.addAndGet(-mails.size());
+        spilled.addAndGet(mails.size());
+    }
+
+    /**
+     * Drops expired frames of all mailboxes, in memory and spilled.
+     */
+    private void sweep() {
+        final Set<String> usernames = spilledUsers();
+        usernames.addAll(memory.keySet());
+        for (String username : usernames) {
+            if (count(username) > 0) {
+                purgeExpired(username);
+            }
+        }
+    }
+
+    /**
+     * Drops expired frames of the user, the mailbox is removed once it is empty.
+     *
+     * @param username {@link String}
+     * @return {@link int} frames left
+     */
+    private int purgeExpired(final String username) {
+        final long now = System.currentTimeMillis();
+        final Deque<Mail> spilledMails = new ArrayDeque<>();
+        for (Mail mail : readSpilled(username)) {
+            if (mail.expiry > now) {
+                spilledMails.add(mail);
+            } else {
+                expired.incrementAndGet();
+            }
+        }
+        try {
+            if (spilledMails.isEmpty()) {
+                Files.deleteIfExists(file(username));
+            } else {
+                write(username, spilledMails, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return counts.get(username);
+        }
+        int count = spilledMails.size();
+        final Deque<Mail> mails = memory.get(username);
+        if (mails != null) {
+            final int before = mails.size();
+            mails.removeIf(mail -> mail.expiry <= now);
+            expired.addAndGet(before - mails.size());
+            inMemory.addAndGet(mails.size() - before);
+            count += mails.size();
+        }
+        if (count == 0) {
+            memory.remove(username);
+            counts.remove(username);
+            mailboxes.decrementAndGet();
+        } else {
+            counts.put(username, count);
+        }
+        return count;
+    }
+
+    /**
+     * Returns number of frames stored for the user, counting its file on first use.
+     *
+     * @param username {@link String}
+     * @return {@link int}
+     */
+    private int count(final String username) {
+        final Integer count = counts.get(username);
+        if (count != null) {
+            return count;
+        }
+        final int spilledCount = readSpilled(username).size();
+        if (spilledCount > 0) {
+            counts.put(username, spilledCount);
+        }
+        return spilledCount;
+    }
+
+    private List<Mail> readSpilled(final String username) {
+        final List<Mail> mails = new ArrayList<>();
+        final Path file = file(username);
+        if (!Files.exists(file)) {
+            return mails;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                final int separator = line.indexOf(' ');
+                if (separator > 0) {
+                    mails.add(new Mail(Long.parseLong(line.substring(0, separator)), line.substring(separator + 1)));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+        }
+        return mails;
+    }
+
+    private void write(final String username, final Deque<Mail> mails, final StandardOpenOption mode) throws IOException {
+        Files.createDirectories(directory);
+        try (BufferedWriter out = Files.newBufferedWriter(file(username), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode)) {
+            for (Mail mail : mails) {
+                out.write(String.format("%d %s", mail.expiry, mail.frame));
+                out.newLine();
+            }
+        }
+    }
+
+    /**
+     * Returns users with a spilled mailbox file.
+     *
+     * @return {@link Set}
+     */
+    private Set<String> spilledUsers() {
+        final Set<String> usernames = new HashSet<>();
+        if (!Files.isDirectory(directory)) {
+            return usernames;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                usernames.add(new String(Base64.getUrlDecoder().decode(name.substring(0, name.length() - EXTENSION.length())),
+                        StandardCharsets.UTF_8));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+        return usernames;
+    }
+
+    /**
+     * Returns file of the mailbox, the name is encoded so any username is a valid file name.
+     *
+     * @param username {@link String}
+     * @return {@link Path}
+     */
+    private Path file(final String username) {
+        return directory.resolve(Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(username.getBytes(StandardCharsets.UTF_8)) + EXTENSION);
+    }
+
+    /**
+     * Returns mailbox counters, read without waiting for the mailbox thread.
+     *
+     * @return {@link String}
+     */
+    String getStats() {
+        return String.format("mailboxes: %d, in memory: %d, stored: %d, delivered: %d, spilled: %d, rejected: %d, expired: %d",
+                mailboxes.get(), inMemory.get(), stored.get(), delivered.get(), spilled.get(), rejected.get(), expired.get());
+    }
+}
@@ -0,0 +1,111 @@
+package tcpip.server;
+
+/**
+ * Open addressing hash map from usernames to session ids without boxing. Not thread-safe.
+ *
+ * @author Bartosz Śledź
+ */
+final class NameIndex {
+
+    static final int MISSING = -1;
+
+    private static final String REMOVED = new String("");
+
+    private String[] keys;
+    private int[] ids;
+    private int size;
+    private int used;
+
+    NameIndex(final int expectedSize) {
+        final int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 4 - 1);
+        keys = new String[capacity];
+        ids = new int[capacity];
+    }
+
+    /**
+     * Maps the username to the session id.
+     *
+     * @param username {@link String}
+     * @param id       {@link int} non-negative
+     * @return {@link boolean} false when the username was already present
+     */
+    boolean put(final String username, final int id) {
+        if (find(username) >= 0) {
+            return false;
+        }
+        if ((used + 1) * 2 > keys.length) {
+            rehash(size * 4 > keys.length ? keys.length * 2 : keys.length);
+        }
+        int index = index(username);
+        while (keys[index] != null && keys[index] != REMOVED) {
+            index = (index + 1) & (keys.length - 1);
+        }
+        if (keys[index] == null) {
+            used++;
+        }
+        keys[index] = username;
+        ids[index] = id;
+        size++;
+        return true;
+    }
+
+    /**
+     * Returns session id of the username.
+     *
+     * @param username {@link String}
+     * @return {@link int} or {@link #MISSING}
+     */
+    int get(final String username) {
+        final int index = find(username);
+        return index >= 0 ? ids[index] : MISSING;
+    }
+
+    /**
+     * Removes the username.
+     *
+     * @param username {@link String}
+     * @return {@link boolean} false when the username was not present
+     */
+    boolean remove(final String username) {
+        final int index = find(username);
+        if (index < 0) {
+            return false;
+        }
+        keys[index] = REMOVED;
+        size--;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int find(final String username) {
+        int index = index(username);
+        while (keys[index] != null) {
+            if (keys[index] != REMOVED && keys[index].equals(username)) {
+                return index;
+            }
+            index = (index + 1) & (keys.length - 1);
+        }
+        return -1;
+    }
+
+    private int index(final String username) {
+        return (username.hashCode() * 0x9E3779B9 >>> 16) & (keys.length - 1);
+    }
+
+    private void rehash(final int capacity) {
+        final String[] previousKeys = keys;
+        final int[] previousIds = ids;
+        keys = new String[capacity];
+        ids = new int[capacity];
+        size = 0;
+        used = 0;
+        for (int i = 0; i < previousKeys.length; i++) {
+            if (previousKeys[i] != null && previousKeys[i] != REMOVED) {
+                put(previousKeys[i], previousIds[i]);
+            }
+        }
+    }
+}
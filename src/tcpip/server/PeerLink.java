@@ -0,0 +1,175 @@
+package tcpip.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent outbound link to a peer node. Lines are queued by any thread and written by the link thread
+ * in batches with a single flush; the link reconnects with backoff whenever the peer is unreachable.
+ * Room lines are numbered by the link thread as "command number argument", the numbers go on across
+ * reconnects and skip room lines dropped on a full queue or lost with a failed batch, so the peer notices
+ * every room line it has not received.
+ *
+ * @author Bartosz Śledź
+ */
+final class PeerLink extends Thread {
+
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int MAX_BATCH = 1024;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private final int peerId;
+    private final InetSocketAddress address;
+    private final Cluster cluster;
+    private final BlockingQueue<Line> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong drops = new AtomicLong();
+    private final AtomicLong droppedRoomLines = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private long roomSequence;
+    private volatile boolean connected;
+
+    /**
+     * Queued line, room lines get their number when written.
+     */
+    private static final class Line {
+        private final String command;
+        private final String argument;
+        private final long skipped;
+
+        private Line(final String command, final String argument, final long skipped) {
+            this.command = command;
+            this.argument = argument;
+            this.skipped = skipped;
+        }
+    }
+
+    PeerLink(final int peerId, final InetSocketAddress address, final Cluster cluster) {
+        super("peer-link-" + peerId);
+        this.peerId = peerId;
+        this.address = address;
+        this.cluster = cluster;
+        setDaemon(true);
+    }
+
+    /**
+     * Queues line for the peer, the line is dropped when the queue is full.
+     *
+     * @param line {@link String}
+     */
+    void send(final String line) {
+        if (!queue.offer(new Line(null, line, 0))) {
+            drops.incrementAndGet();
+        }
+    }
+
+    /**
+     * Queues numbered room line for the peer, a dropped line is skipped by the number of the next one.
+     *
+     * @param command  {@link String}
+     * @param argument {@link String}
+     * @param skipped  {@link long} room lines lost before this one which the peer has to skip as well
+     */
+    void sendRoom(final String command, final String argument, final long skipped) {
+        if (!queue.offer(new Line(command, argument, skipped))) {
+            drops.incrementAndGet();
+            droppedRoomLines.addAndGet(skipped + 1);
+        }
+    }
+
+    /**
+     * Checks if the link is connected.
+     *
+     * @return {@link boolean}
+     */
+    boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void run() {
+        long backoff = 100;
+        final List<Line> batch = new ArrayList<>(MAX_BATCH);
+        int formatted = 0;
+        while (!isInterrupted()) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address);
+                socket.setTcpNoDelay(true);
+                final Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                for (String line : cluster.handshake()) {
+                    out.write(line);
+                    out.write('\n');
+                }
+                out.flush();
+                connected = true;
+                backoff = 100;
+                cluster.linkConnected(peerId);
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for (formatted = 0; formatted < batch.size(); ) {
+                        out.write(format(batch.get(formatted++)));
+                        out.write('\n');
+                    }
+                    out.flush();
+                    batch.clear();
+                    formatted = 0;
+                    batches.incrementAndGet();
+                }
+            } catch (IOException e) {
+                for (Line line : batch.subList(formatted, batch.size())) {
+                    if (line.command != null) {
+                        droppedRoomLines.addAndGet(line.skipped + 1);
+                    }
+                }
+                batch.clear();
+                formatted = 0;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                connected = false;
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    /**
+     * Formats queued line, room lines are numbered in the order they are written.
+     *
+     * @param line {@link Line}
+     * @return {@link String}
+     */
+    private String format(final Line line) {
+        if (line.command == null) {
+            return line.argument;
+        }
+        roomSequence += line.skipped + droppedRoomLines.getAndSet(0) + 1;
+        return String.format("%s %d %s", line.command, roomSequence, line.argument);
+    }
+
+    /**
+     * Returns counters of the link.
+     *
+     * @return {@link String}
+     */
+    String getStats() {
+        return String.format("peer %d: connected: %b, queued: %d, batches: %d, drops: %d",
+                peerId, connected, queue.size(), batches.get(), drops.get());
+    }
+}
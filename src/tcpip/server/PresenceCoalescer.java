@@ -0,0 +1,80 @@
+package tcpip.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects joins and leaves and publishes them as a single delta once per window, so a wave of
+ * reconnecting users costs one frame per window instead of a full list of users per login.
+ * Only the last change of every user within one window is published. A join and a leave must not cancel
+ * each other out, clients may have seen the user in between in the users of a chat message.
+ *
+ * @author Bartosz Śledź
+ */
+final class PresenceCoalescer {
+
+    private final ConcurrentLinkedQueue<String> changes = new ConcurrentLinkedQueue<>();
+    private final Consumer<String> publisher;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "presence-coalescer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param publisher {@link Consumer} receives changes formatted as "+joined, -left"
+     */
+    PresenceCoalescer(final Consumer<String> publisher) {
+        this.publisher = publisher;
+    }
+
+    /**
+     * Starts publishing collected changes.
+     *
+     * @param windowMillis {@link long}
+     */
+    void start(final long windowMillis) {
+        scheduler.scheduleAtFixedRate(this::flush, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void joined(final String username) {
+        changes.offer("+" + username);
+    }
+
+    void left(final String username) {
+        changes.offer("-" + username);
+    }
+
+    /**
+     * Publishes changes collected since the last flush.
+     */
+    void flush() {
+        if (changes.isEmpty()) {
+            return;
+        }
+        final Map<String, Character> delta = new LinkedHashMap<>();
+        String change;
+        while ((change = changes.poll()) != null) {
+            delta.put(change.substring(1), change.charAt(0));
+        }
+        final StringBuilder published = new StringBuilder();
+        for (Iterator<Map.Entry<String, Character>> it = delta.entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<String, Character> entry = it.next();
+            published.append(entry.getValue()).append(entry.getKey());
+            if (it.hasNext()) {
+                published.append(", ");
+            }
+        }
+        try {
+            publisher.accept(published.toString());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
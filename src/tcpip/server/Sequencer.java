@@ -0,0 +1,140 @@
+package tcpip.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Puts everything broadcast to a room into one order. Any thread publishes frames and tasks into a lock-free
+ * multi-producer single-consumer queue: a producer only swaps the tail, so concurrent senders never wait
+ * for each other. The sequencer thread takes entries in the order they were linked, numbers frames and hands
+ * them to the node, so every user of the room receives the same frames in the same order.
+ * Frames are published already encoded and compressed by the producers, the sequencer thread only prefixes
+ * their numbers.
+ * Producers wait while the queue is full, which slows down the senders instead of dropping their frames.
+ *
+ * @author Bartosz Śledź
+ */
+final class Sequencer extends Thread {
+
+    private static final int CAPACITY = 65536;
+
+    private static final class Entry {
+        private final String line;
+        private final Frame frame;
+        private final Frame compressedFrame;
+        private final boolean room;
+        private final long skipped;
+        private final Runnable task;
+        private volatile Entry next;
+
+        private Entry(final String line, final Frame frame, final Frame compressedFrame, final boolean room,
+                      final long skipped, final Runnable task) {
+            this.line = line;
+            this.frame = frame;
+            this.compressedFrame = compressedFrame;
+            this.room = room;
+            this.skipped = skipped;
+            this.task = task;
+        }
+    }
+
+    private final ChatNode node;
+    private final AtomicReference<Entry> tail;
+    private final AtomicInteger pending = new AtomicInteger();
+    private Entry head;
+    private long sequence;
+    private volatile boolean waiting;
+
+    Sequencer(final ChatNode node) {
+        super("sequencer");
+        this.node = node;
+        this.head = new Entry(null, null, null, false, 0, null);
+        this.tail = new AtomicReference<>(head);
+        setDaemon(true);
+    }
+
+    /**
+     * Queues frame, the sequencer takes over the references of the frames.
+     *
+     * @param line            {@link String}
+     * @param frame           {@link Frame} encoded line
+     * @param compressedFrame {@link Frame} encoded compressed line or null
+     * @param room            {@link boolean} true for frames of the room sequenced by this node, false for
+     *                        frames sequenced elsewhere or meant for users of this node only
+     * @param skipped         {@link long} frames lost before this one, their numbers are skipped so users
+     *                        notice the gap
+     */
+    void publish(final String line, final Frame frame, final Frame compressedFrame, final boolean room,
+                 final long skipped) {
+        offer(new Entry(line, frame, compressedFrame, room, skipped, null));
+    }
+
+    /**
+     * Queues task which runs on the sequencer thread after all frames published before it are delivered.
+     *
+     * @param task {@link Runnable}
+     */
+    void execute(final Runnable task) {
+        offer(new Entry(null, null, null, false, 0, task));
+    }
+
+    private void offer(final Entry entry) {
+        while (pending.get() >= CAPACITY) {
+            Thread.yield();
+        }
+        pending.incrementAndGet();
+        tail.getAndSet(entry).next = entry;
+        if (waiting) {
+            LockSupport.unpark(this);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void run() {
+        while (true) {
+            if (!processNext()) {
+                waiting = true;
+                if (head.next == null) {
+                    LockSupport.park(this);
+                }
+                waiting = false;
+            }
+        }
+    }
+
+    /**
+     * Processes all queued entries on the calling thread instead of the sequencer thread, used by {@link Simulation}.
+     */
+    void drain() {
+        while (processNext()) {
+        }
+    }
+
+    /**
+     * Processes the next entry.
+     *
+     * @return {@link boolean} false when there was no entry
+     */
+    private boolean processNext() {
+        final Entry next = head.next;
+        if (next == null) {
+            return false;
+        }
+        head = next;
+        pending.decrementAndGet();
+        try {
+            if (next.task != null) {
+                next.task.run();
+            } else {
+                sequence += next.skipped;
+                node.deliverSequenced(++sequence, next.line, next.frame, next.compressedFrame, next.room, next.skipped);
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+}
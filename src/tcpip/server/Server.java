@@ -1,131 +1,137 @@
 package tcpip.server;
 
+import core.Protocol;
+import core.SocketOptions;
+
 import java.io.*;
 import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 /**
+ * Accepts client connections of a chat node, every connection is served by its own thread speaking
+ * the {@link ConnectionProtocol}.
+ *
  * @author Bartosz Śledź
  */
 public final class Server extends Thread {
 
-    private static final int PORT = 9000;
-    private static final int MAX_USERS = 10;
-    private static final String CONNECT = "CONNECT";
-    private static final String ONLINE = "ONLINE";
-    private static final String MESSAGE = "MESSAGE";
-    private static final String ERROR = "ERROR";
-    private static final HashSet<String> USERS_NAMES = new HashSet<>();
-    private static final HashSet<PrintWriter> WRITERS = new HashSet<>();
+    private static final long DRAIN_MILLIS = 5000;
 
-    private final Socket socket;
-    private String username;
-    private boolean error = false;
-    private PrintWriter out;
+    private final ChatNode node;
+    private final SocketChannel channel;
+    private final ServerTls tls;
+    private final SocketOptions options;
 
-    private Server(final Socket socket) {
-        this.socket = socket;
+    private Server(final ChatNode node, final SocketChannel channel, final ServerTls tls, final SocketOptions options) {
+        this.node = node;
+        this.channel = channel;
+        this.tls = tls;
+        this.options = options;
     }
 
     /**
      * {@inheritDoc}
      */
     public void run() {
+        final TlsChannel tlsChannel;
+        final String host;
         try {
-
-            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-
-            while (true) {
-                out.println(CONNECT);
-                username = in.readLine();
-                if (username == null) {
-                    return;
-                }
-                synchronized (USERS_NAMES) {
-                    if (!USERS_NAMES.contains(username)) {
-                        if (USERS_NAMES.size() < MAX_USERS) {
-                            USERS_NAMES.add(username);
-                            break;
-                        } else {
-                            error = true;
-                            sendErrorMessageToOne("Limit of online users on the server has been reached: " + MAX_USERS);
-                            return;
-                        }
-                    } else {
-                        error = true;
-                        sendErrorMessageToOne("Login is already used!");
-                        return;
-                    }
-                }
-            }
-
-            WRITERS.add(out);
-            //System.out.println(String.format("%s jest online", username));
-            sendMessageToAllOnline(ONLINE, null);
-
-            while (true) {
-                String input = in.readLine();
-                if (input == null) {
-                    return;
-                }
-                //System.out.println(String.format("%s: %s", username, input));
-                sendMessageToAllOnline(MESSAGE, input);
-            }
-
+            options.apply(channel.socket());
+            channel.socket().setKeepAlive(true);
+            host = ((InetSocketAddress) channel.getRemoteAddress()).getHostString();
+            tlsChannel = tls != null ? tls.handshake(channel) : null;
         } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (username != null && !error) {
-                USERS_NAMES.remove(username);
-            }
-            if (out != null) {
-                WRITERS.remove(out);
-            }
+            node.recordError(String.format("connection setup failed: %s", e));
             try {
-                socket.close();
-            } catch (IOException e) {
+                channel.close();
+            } catch (IOException closeException) {
             }
+            return;
         }
-    }
-
-    /**
-     * Sends the appropriate message type to all online users.
-     *
-     * @param messageType {@link String}
-     * @param message     {@link String}
-     */
-    private void sendMessageToAllOnline(final String messageType, final String message) {
-        for (PrintWriter writer : WRITERS) {
-            switch (messageType) {
-                case MESSAGE:
-                    writer.println(String.format("%s %s: %s %s", MESSAGE, username, message, Arrays.toString(USERS_NAMES.toArray(new String[USERS_NAMES.size()]))));
-                    break;
-                case ONLINE:
-                    writer.println(String.format("%s %s", messageType, Arrays.toString(USERS_NAMES.toArray(new String[USERS_NAMES.size()]))));
-                    break;
+        final Connection connection = new Connection(tlsChannel != null ? tlsChannel : channel, options.getCoalesceNanos());
+        final ConnectionProtocol protocol = new ConnectionProtocol(node, connection, host);
+        try {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(connection.countReads(Channels.newInputStream(tlsChannel != null ? tlsChannel : channel)), StandardCharsets.UTF_8));
+            connection.start();
+            protocol.open();
+            String line;
+            while ((line = in.readLine()) != null && protocol.handle(line) == null) {
             }
+        } catch (IOException e) {
+            if (channel.isOpen()) {
+                node.recordError(e.toString());
+                e.printStackTrace();
+            }
+        } finally {
+            protocol.close();
         }
     }
 
     /**
-     * Sends the error message type to user.
+     * Starts the server node.
+     * Without arguments a single node listens on {@link Protocol#TCP_PORT}, a cluster node is started with
+     * "port nodeId clusterPort peerId@host:clusterPort...", e.g. two nodes on loopback:
+     * "9000 1 9100 2@127.0.0.1:9101" and "9001 2 9101 1@127.0.0.1:9100".
+     * The cluster port is bound to the address given by the "server.cluster.bind" system property, loopback by default.
+     * On shutdown the server stops accepting, drains all connections and persists its state to the file
+     * given by the "server.state" system property.
+     * With the "server.tls" system property set to true clients have to connect over TLS, see {@link ServerTls}.
+     * The "server.admin" system property enables {@link AdminPort} on the given loopback port.
+     * Socket options and write coalescing of client connections are read by {@link SocketOptions#fromSystemProperties()}.
      *
-     * @param message {@link String}
+     * @param args {@link String}
      */
-    private void sendErrorMessageToOne(final String message) {
-        out.println(String.format("%s:%s", ERROR, message));
-    }
+    public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : Protocol.TCP_PORT;
+        final int nodeId = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        final int clusterPort = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        final Map<Integer, InetSocketAddress> peers = new HashMap<>();
+        for (int i = 3; i < args.length; i++) {
+            final String[] peer = args[i].split("[@:]");
+            peers.put(Integer.parseInt(peer[0]), new InetSocketAddress(peer[1], Integer.parseInt(peer[2])));
+        }
 
-    public static void main(String[] args) throws IOException {
+        final Path statePath = Paths.get(System.getProperty("server.state", String.format("server-%d.state", port)));
+        final ServerTls tls = Boolean.getBoolean("server.tls") ? new ServerTls() : null;
+        final InetSocketAddress clusterAddress = new InetSocketAddress(
+                System.getProperty("server.cluster.bind", InetAddress.getLoopbackAddress().getHostAddress()), clusterPort);
+        final ChatNode node = new ChatNode(nodeId, clusterAddress, peers, statePath);
+        node.start();
+        final int adminPort = Integer.getInteger("server.admin", 0);
+        if (adminPort > 0) {
+            new AdminPort(node, tls, adminPort).start();
+        }
         System.out.println("Start Server.");
-        ServerSocket serverSocket = new ServerSocket(PORT);
+        final SocketOptions options = SocketOptions.fromSystemProperties();
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        if (options.getReceiveBuffer() > 0) {
+            serverChannel.socket().setReceiveBufferSize(options.getReceiveBuffer());
+        }
+        serverChannel.bind(new InetSocketAddress(port));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+            }
+            node.shutdown(DRAIN_MILLIS);
+            if (tls != null) {
+                System.out.println(tls.getStats());
+            }
+        }));
         try {
             while (true) {
-                new Server(serverSocket.accept()).start();
+                new Server(node, serverChannel.accept(), tls, options).start();
             }
-        } finally {
-            serverSocket.close();
+        } catch (ClosedChannelException e) {
+            System.out.println("Stop Server.");
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,90 @@
+package tcpip.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Roster and recent history persisted on shutdown, so a restarted server starts with warm state.
+ * Every line is either "USER host username" or "TEXT frame".
+ *
+ * @author Bartosz Śledź
+ */
+final class ServerState {
+
+    private static final String USER = "USER";
+    private static final String TEXT = "TEXT";
+
+    private final Map<String, String> hosts;
+    private final List<String> history;
+
+    /**
+     * @param hosts   {@link Map} hosts of online users by username
+     * @param history {@link List} recent encoded frames
+     */
+    ServerState(final Map<String, String> hosts, final List<String> history) {
+        this.hosts = hosts;
+        this.history = history;
+    }
+
+    Map<String, String> getHosts() {
+        return hosts;
+    }
+
+    List<String> getHistory() {
+        return history;
+    }
+
+    /**
+     * Writes state to a temporary file which then atomically replaces the previous state.
+     *
+     * @param path {@link Path}
+     */
+    void save(final Path path) throws IOException {
+        final Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> user : hosts.entrySet()) {
+                out.write(String.format("%s %s %s", USER, user.getValue(), user.getKey()));
+                out.newLine();
+            }
+            for (String frame : history) {
+                out.write(String.format("%s %s", TEXT, frame));
+                out.newLine();
+            }
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads state saved by the previous process.
+     *
+     * @param path {@link Path}
+     * @return {@link ServerState} empty when there is no saved state
+     */
+    static ServerState load(final Path path) throws IOException {
+        final Map<String, String> hosts = new HashMap<>();
+        final List<String> history = new ArrayList<>();
+        if (Files.exists(path)) {
+            try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith(USER + " ")) {
+                        final String[] user = line.split(" ", 3);
+                        hosts.put(user[2], user[1]);
+                    } else if (line.startsWith(TEXT + " ")) {
+                        history.add(line.substring(TEXT.length() + 1));
+                    }
+                }
+            }
+        }
+        return new ServerState(hosts, history);
+    }
+}
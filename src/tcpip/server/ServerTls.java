@@ -0,0 +1,107 @@
+package tcpip.server;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server side TLS. Handshakes are done by connection threads, never by the accept loop, and their expensive
+ * tasks are offloaded to a pool sized to the processors so a reconnect storm cannot take all CPUs.
+ * Clients reconnecting with a session ticket resume their session without a full handshake.
+ * The certificate is read from the standard "javax.net.ssl.keyStore" properties, e.g. a self-signed one
+ * created by "keytool -genkeypair -keyalg EC -alias chat -dname CN=localhost -keystore chat.p12".
+ *
+ * @author Bartosz Śledź
+ */
+final class ServerTls {
+
+    private final SSLContext context;
+    private final ExecutorService tasks = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+        final Thread thread = new Thread(runnable, "tls-handshake");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final long started = System.nanoTime();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong handshakeNanos = new AtomicLong();
+    private final AtomicLong maxHandshakeNanos = new AtomicLong();
+
+    ServerTls() throws NoSuchAlgorithmException {
+        this.context = SSLContext.getDefault();
+    }
+
+    /**
+     * Performs the server handshake over the accepted channel.
+     *
+     * @param channel {@link SocketChannel}
+     * @return {@link TlsChannel}
+     */
+    TlsChannel handshake(final SocketChannel channel) throws IOException {
+        final long start = System.nanoTime();
+        final SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        final TlsChannel tlsChannel = new TlsChannel(channel, engine, this);
+        try {
+            tlsChannel.handshake();
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            throw e;
+        }
+        final long duration = System.nanoTime() - start;
+        handshakes.incrementAndGet();
+        handshakeNanos.addAndGet(duration);
+        maxHandshakeNanos.accumulateAndGet(duration, Math::max);
+        if (engine.getSession().getCreationTime() < System.currentTimeMillis() - duration / 1000000 - 1) {
+            resumed.incrementAndGet();
+        }
+        return tlsChannel;
+    }
+
+    /**
+     * Runs delegated handshake tasks of the engine on the handshake pool.
+     *
+     * @param engine {@link SSLEngine}
+     */
+    void runTasks(final SSLEngine engine) throws SSLException {
+        final List<Future<?>> pending = new ArrayList<>();
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            pending.add(tasks.submit(task));
+        }
+        try {
+            for (Future<?> future : pending) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new SSLException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SSLException(e);
+        }
+    }
+
+    /**
+     * Returns handshake rate, resumption and latency counters.
+     *
+     * @return {@link String}
+     */
+    String getStats() {
+        final long count = handshakes.get();
+        final double seconds = Math.max(1, (System.nanoTime() - started) / 1000000000L);
+        return String.format("handshakes: %d (%.2f/s), resumed: %d, failed: %d, avg: %.2f ms, max: %.2f ms",
+                count, count / seconds, resumed.get(), failures.get(),
+                count > 0 ? handshakeNanos.get() / 1e6 / count : 0.0, maxHandshakeNanos.get() / 1e6);
+    }
+}
@@ -0,0 +1,244 @@
+package tcpip.server;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Sessions of the users logged in on this node. Every session gets a compact int id at login which
+ * is reused after logout; the username is stored once per session and only resolved when frames are encoded.
+ * Logins and logouts are serialized and update the published online ids and sorted usernames incrementally,
+ * lookups read immutable snapshots without locking.
+ *
+ * @author Bartosz Śledź
+ */
+final class SessionRegistry {
+
+    static final int TAKEN = -1;
+    static final int LIMIT = -2;
+
+    private final int maxSessions;
+    private final NameIndex ids;
+    private int[] freeIds = new int[16];
+    private int freeCount;
+    private int nextId;
+    private volatile String[] names = new String[16];
+    private volatile String[] hosts = new String[16];
+    private volatile Connection[] connections = new Connection[16];
+    private volatile int[] onlineIds = new int[0];
+    private volatile Usernames snapshot = new Usernames(new String[0]);
+
+    SessionRegistry(final int maxSessions) {
+        this.maxSessions = maxSessions;
+        this.ids = new NameIndex(maxSessions);
+    }
+
+    /**
+     * Opens session of the user with unique name while there is free capacity.
+     *
+     * @param username   {@link String}
+     * @param host       {@link String}
+     * @param connection {@link Connection}
+     * @return {@link int} session id, {@link #TAKEN} or {@link #LIMIT}
+     */
+    synchronized int open(final String username, final String host, final Connection connection) {
+        if (ids.get(username) != NameIndex.MISSING) {
+            return TAKEN;
+        }
+        if (ids.size() >= maxSessions) {
+            return LIMIT;
+        }
+        final int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+        if (id >= names.length) {
+            final int capacity = names.length * 2;
+            hosts = Arrays.copyOf(hosts, capacity);
+            connections = Arrays.copyOf(connections, capacity);
+            names = Arrays.copyOf(names, capacity);
+        }
+        names[id] = username;
+        hosts[id] = host;
+        connections[id] = connection;
+        ids.put(username, id);
+        final int[] current = onlineIds;
+        final int[] added = Arrays.copyOf(current, current.length + 1);
+        added[current.length] = id;
+        onlineIds = added;
+        snapshot = snapshot.with(username);
+        return id;
+    }
+
+    /**
+     * Closes session, its id may be reused by the next login.
+     *
+     * @param id {@link int}
+     * @return {@link String} username of the closed session or null when the session was not open
+     */
+    synchronized String close(final int id) {
+        final String username = id >= 0 && id < names.length ? names[id] : null;
+        if (username == null || ids.get(username) != id) {
+            return null;
+        }
+        ids.remove(username);
+        final int[] current = onlineIds;
+        final int[] removed = new int[current.length - 1];
+        for (int i = 0, j = 0; i < current.length; i++) {
+            if (current[i] != id) {
+                removed[j++] = current[i];
+            }
+        }
+        onlineIds = removed;
+        snapshot = snapshot.without(username);
+        names[id] = null;
+        hosts[id] = null;
+        connections[id] = null;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        }
+        freeIds[freeCount++] = id;
+        return username;
+    }
+
+    /**
+     * Returns id of the session of the user.
+     *
+     * @param username {@link String}
+     * @return {@link int} or {@link NameIndex#MISSING} when the user is not logged in on this node
+     */
+    synchronized int id(final String username) {
+        return ids.get(username);
+    }
+
+    /**
+     * Returns ids of open sessions.
+     *
+     * @return {@link int}
+     */
+    int[] onlineIds() {
+        return onlineIds;
+    }
+
+    /**
+     * Returns username of the session.
+     *
+     * @param id {@link int}
+     * @return {@link String}
+     */
+    String name(final int id) {
+        return names[id];
+    }
+
+    /**
+     * Returns connection of the session.
+     *
+     * @param id {@link int}
+     * @return {@link Connection} or null when the session has just been closed
+     */
+    Connection connection(final int id) {
+        return connections[id];
+    }
+
+    /**
+     * Returns hosts of online users by username.
+     *
+     * @return {@link Map}
+     */
+    Map<String, String> hosts() {
+        final String[] currentNames = names;
+        final String[] currentHosts = hosts;
+        final Map<String, String> result = new HashMap<>();
+        for (int id : onlineIds) {
+            if (id < currentNames.length && currentNames[id] != null) {
+                result.put(currentNames[id], currentHosts[id]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns sorted, immutable snapshot of online usernames.
+     *
+     * @return {@link Set}
+     */
+    Set<String> snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Immutable set of usernames over a sorted array, its text form is built once since every chat message
+     * carries it.
+     */
+    private static final class Usernames extends AbstractSet<String> {
+
+        private final String[] sorted;
+        private String text;
+
+        private Usernames(final String[] sorted) {
+            this.sorted = sorted;
+        }
+
+        /**
+         * Returns copy of the set with the username inserted at its sorted position.
+         *
+         * @param username {@link String}
+         * @return {@link Usernames}
+         */
+        private Usernames with(final String username) {
+            final int position = -Arrays.binarySearch(sorted, username) - 1;
+            final String[] added = new String[sorted.length + 1];
+            System.arraycopy(sorted, 0, added, 0, position);
+            added[position] = username;
+            System.arraycopy(sorted, position, added, position + 1, sorted.length - position);
+            return new Usernames(added);
+        }
+
+        /**
+         * Returns copy of the set without the username.
+         *
+         * @param username {@link String}
+         * @return {@link Usernames}
+         */
+        private Usernames without(final String username) {
+            final int position = Arrays.binarySearch(sorted, username);
+            final String[] removed = new String[sorted.length - 1];
+            System.arraycopy(sorted, 0, removed, 0, position);
+            System.arraycopy(sorted, position + 1, removed, position, removed.length - position);
+            return new Usernames(removed);
+        }
+
+        public boolean contains(final Object username) {
+            return username instanceof String && Arrays.binarySearch(sorted, username) >= 0;
+        }
+
+        public int size() {
+            return sorted.length;
+        }
+
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int next;
+
+                public boolean hasNext() {
+                    return next < sorted.length;
+                }
+
+                public String next() {
+                    if (next >= sorted.length) {
+                        throw new NoSuchElementException();
+                    }
+                    return sorted[next++];
+                }
+            };
+        }
+
+        public String toString() {
+            if (text == null) {
+                text = super.toString();
+            }
+            return text;
+        }
+    }
+}
@@ -0,0 +1,473 @@
+package tcpip.server;
+
+import core.ChatSession;
+import core.Codec;
+import core.FrameCompression;
+import core.FrameSequence;
+import core.Message;
+import core.Protocol;
+import core.TcpCodec;
+import core.Transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Deterministic simulation of the server core. Simulated clients connect with or without compression, log in,
+ * send messages to the room and to single users and leave over in-memory connections, every step is chosen by
+ * a random generator seeded from the command line and runs on a single thread, so a failing run is reproduced
+ * by repeating its seed.
+ * The server side of every client is the {@link ConnectionProtocol} of {@link Server} against a real
+ * {@link ChatNode}, clients are real {@link ChatSession}s.
+ * <p>
+ * After every step the harness checks unique usernames and that online users of the node match the clients
+ * logged in, periodically it delivers everything queued and checks that no session and no message was lost,
+ * including messages waiting in mailboxes of offline users, that every compressed frame was decompressed,
+ * that sequence numbers received by every client have no gaps and that every client shows the online users
+ * of the node.
+ * Usage: "java tcpip.server.Simulation [seed] [clients] [steps]".
+ *
+ * @author Bartosz Śledź
+ */
+public final class Simulation {
+
+    private static final int NAMES = 24;
+    private static final int QUIESCE_EVERY = 1000;
+    private static final String HOST = "127.0.0.1";
+    private static final String TEXT = "long enough for frames to be compressed";
+    private static final String ACCEPT_COMPRESSION = String.format("%s %s", Protocol.COMPRESS, Protocol.DEFLATE);
+
+    private final long seed;
+    private final Random random;
+    private final int maxClients;
+    private final ChatNode node;
+    private final Codec clientCodec = TcpCodec.forClient();
+    private final List<SimulatedClient> clients = new ArrayList<>();
+    private final Map<String, Integer> mailed = new HashMap<>();
+    private long step;
+    private int created;
+    private long logins;
+    private long rejections;
+    private long logouts;
+    private long broadcasts;
+    private long directs;
+    private long compressedFrames;
+    private long expectedDeliveries;
+    private long deliveries;
+
+    /**
+     * Starts a node keeping its state and mailboxes in a new temporary directory, so runs do not share them.
+     *
+     * @param seed       {@link long}
+     * @param maxClients {@link int} clients connected during the whole run
+     */
+    private Simulation(final long seed, final int maxClients) throws IOException {
+        this.node = new ChatNode(0, new InetSocketAddress(0), Collections.emptyMap(),
+                Files.createTempDirectory("simulation").resolve("simulation.state"));
+        this.seed = seed;
+        this.random = new Random(seed);
+        this.maxClients = maxClients;
+    }
+
+    /**
+     * Runs the given number of steps and prints the throughput.
+     *
+     * @param steps {@link long}
+     */
+    private void run(final long steps) throws IOException {
+        final long start = System.nanoTime();
+        for (step = 0; step < steps; step++) {
+            final int action = random.nextInt(100);
+            if (action < 8 || clients.isEmpty()) {
+                connect(action < 4);
+            } else if (action < 96) {
+                final SimulatedClient client = clients.get(random.nextInt(clients.size()));
+                if (action < 40) {
+                    serve(client);
+                } else if (action < 70) {
+                    deliver(client);
+                } else if (action < 82) {
+                    if (client.session.isConnected() && !client.closed) {
+                        client.session.send(String.format("message %d %s", step, TEXT));
+                    }
+                } else if (action < 90) {
+                    if (client.session.isConnected() && !client.closed) {
+                        client.session.send(String.format("%suser%d message %d %s", Protocol.DIRECT, random.nextInt(NAMES), step, TEXT));
+                    }
+                } else {
+                    client.session.close();
+                }
+            } else {
+                node.flushPresence();
+                node.flushSequencer();
+            }
+            checkRoster();
+            if (step % QUIESCE_EVERY == QUIESCE_EVERY - 1) {
+                quiesce();
+            }
+        }
+        quiesce();
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("seed %d: %d steps in %.2f s (%.0f steps/s), clients: %d, logins: %d, rejections: %d, "
+                        + "logouts: %d, messages: %d, direct: %d, deliveries: %d (%.0f/s), compressed: %d",
+                seed, steps, seconds, steps / seconds, created, logins, rejections, logouts, broadcasts, directs,
+                deliveries, deliveries / seconds, compressedFrames));
+    }
+
+    /**
+     * Connects a new client with a name which may already be used.
+     *
+     * @param compression {@link boolean} the client accepts compression offered by the node
+     */
+    private void connect(final boolean compression) {
+        if (created == maxClients) {
+            return;
+        }
+        created++;
+        final SimulatedClient client = new SimulatedClient("user" + random.nextInt(NAMES), compression, node);
+        clients.add(client);
+        client.protocol.open();
+        client.session.open();
+    }
+
+    /**
+     * Handles one frame sent by the client with its {@link ConnectionProtocol}, frames published by the node
+     * are sequenced right away.
+     *
+     * @param client {@link SimulatedClient}
+     */
+    private void serve(final SimulatedClient client) throws IOException {
+        handle(client);
+        node.flushSequencer();
+    }
+
+    private void handle(final SimulatedClient client) throws IOException {
+        final String frame = client.outbound.poll();
+        if (frame == null) {
+            if (client.closed) {
+                finish(client);
+            }
+            return;
+        }
+        if (!client.loggedIn && frame.equals(ACCEPT_COMPRESSION)) {
+            check(client.protocol.handle(frame) == null, String.format("compression of %s refused", client.name));
+            return;
+        }
+        if (!client.loggedIn) {
+            final String expected = expectedAdmission(frame);
+            final String error = client.protocol.handle(frame);
+            check(Objects.equals(expected, error), String.format("login of %s: expected %s, got %s", frame, expected, error));
+            if (error != null) {
+                rejections++;
+                finish(client);
+                return;
+            }
+            logins++;
+            client.loggedIn = true;
+            final Integer mail = mailed.remove(client.name);
+            expectedDeliveries += Math.min(ChatNode.HISTORY_SIZE, broadcasts) + (mail != null ? mail : 0);
+            return;
+        }
+        expect(client, Protocol.recipientOf(frame));
+        client.protocol.handle(frame);
+    }
+
+    /**
+     * Counts deliveries of text sent by the client: a broadcast reaches every user logged in, a direct message
+     * the sender and its recipient, and the recipient at its next login when it is offline and its mailbox
+     * is not full.
+     *
+     * @param client    {@link SimulatedClient} sender
+     * @param recipient {@link String} or null for a broadcast
+     */
+    private void expect(final SimulatedClient client, final String recipient) {
+        if (recipient == null) {
+            broadcasts++;
+            expectedDeliveries += loggedInNames().size();
+            return;
+        }
+        directs++;
+        expectedDeliveries++;
+        if (loggedInNames().contains(recipient)) {
+            expectedDeliveries += recipient.equals(client.name) ? 0 : 1;
+        } else if (mailed.getOrDefault(recipient, 0) < ChatNode.MAILBOX_QUOTA) {
+            mailed.merge(recipient, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Ends the connection of the client like the end of stream does.
+     *
+     * @param client {@link SimulatedClient}
+     */
+    private void finish(final SimulatedClient client) throws IOException {
+        if (client.loggedIn) {
+            logouts++;
+        }
+        client.finished = true;
+        client.protocol.close();
+        deliver(client);
+        check(!client.channel.isOpen(), String.format("connection of %s not closed", client.name));
+        clients.remove(client);
+    }
+
+    /**
+     * Writes frames queued for the client and passes them to its session, compressed frames are decompressed
+     * with the dictionary of the last frame carrying a user list like {@link tcpip.client.ClientConnection} does.
+     *
+     * @param client {@link SimulatedClient}
+     */
+    private void deliver(final SimulatedClient client) throws IOException {
+        client.connection.flush();
+        for (String received : client.channel.takeLines()) {
+            String line = client.sequence.accept(received);
+            check(line != null, String.format("%s received %s again", client.name, received));
+            if (FrameCompression.isCompressed(line)) {
+                compressedFrames++;
+                line = FrameCompression.decompress(line, client.dictionary);
+                check(line != null, String.format("%s could not decompress %s", client.name, received));
+            }
+            if (client.compression) {
+                final FrameCompression.Dictionary dictionary = FrameCompression.dictionaryOf(line);
+                if (dictionary != null) {
+                    client.dictionary = dictionary;
+                }
+            }
+            if (line.startsWith(Protocol.MESSAGE)) {
+                deliveries++;
+            }
+            final Message message = clientCodec.decode(line);
+            if (message != null && !client.closed) {
+                client.session.onMessage(message);
+            }
+        }
+    }
+
+    /**
+     * Delivers everything queued, then checks that nothing was lost and all clients agree with the node.
+     */
+    private void quiesce() throws IOException {
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            node.flushPresence();
+            node.flushSequencer();
+            for (SimulatedClient client : new ArrayList<>(clients)) {
+                deliver(client);
+                while (!client.finished && (!client.outbound.isEmpty() || client.closed)) {
+                    serve(client);
+                    progress = true;
+                }
+            }
+        }
+        check(deliveries == expectedDeliveries, String.format("delivered %d of %d messages", deliveries, expectedDeliveries));
+        check(node.sessionStats().size() == loggedInNames().size(),
+                String.format("%d sessions for %d users", node.sessionStats().size(), loggedInNames().size()));
+        for (SimulatedClient client : clients) {
+            check(client.sequence.getMissed() == 0, String.format("%s: %s", client.name, client.sequence.getStats()));
+            if (client.session.isConnected()) {
+                check(client.session.getUsers().equals(node.users()),
+                        String.format("%s shows %s instead of %s", client.name, client.session.getUsers(), node.users()));
+            }
+        }
+    }
+
+    /**
+     * Checks that usernames are unique and the node has exactly the users logged in.
+     */
+    private void checkRoster() {
+        final List<String> names = loggedInNames();
+        final Set<String> unique = new HashSet<>(names);
+        check(unique.size() == names.size(), String.format("duplicate usernames: %s", names));
+        check(unique.equals(node.localUsers()), String.format("node has %s instead of %s", node.localUsers(), unique));
+    }
+
+    /**
+     * Returns the expected result of the login given clients logged in.
+     *
+     * @param username {@link String}
+     * @return {@link String} reason of rejection or null
+     */
+    private String expectedAdmission(final String username) {
+        final List<String> names = loggedInNames();
+        if (names.contains(username)) {
+            return Protocol.LOGIN_TAKEN;
+        }
+        return names.size() >= Protocol.MAX_USERS ? Protocol.LIMIT_REACHED : null;
+    }
+
+    private List<String> loggedInNames() {
+        final List<String> names = new ArrayList<>();
+        for (SimulatedClient client : clients) {
+            if (client.loggedIn && !client.finished) {
+                names.add(client.name);
+            }
+        }
+        return names;
+    }
+
+    private void check(final boolean condition, final String violation) {
+        if (!condition) {
+            throw new IllegalStateException(String.format("seed %d, step %d: %s", seed, step, violation));
+        }
+    }
+
+    /**
+     * Client whose transport and server connection live in memory.
+     */
+    private static final class SimulatedClient implements Transport, ChatSession.Listener {
+
+        private static final Codec CODEC = TcpCodec.forClient();
+
+        private final String name;
+        private final boolean compression;
+        private final MemoryChannel channel = new MemoryChannel();
+        private final Connection connection = new Connection(channel, 0);
+        private final ConnectionProtocol protocol;
+        private final FrameSequence sequence = new FrameSequence();
+        private final ChatSession session;
+        private final Queue<String> outbound = new ArrayDeque<>();
+        private FrameCompression.Dictionary dictionary;
+        private boolean closed;
+        private boolean loggedIn;
+        private boolean finished;
+
+        /**
+         * @param name        {@link String}
+         * @param compression {@link boolean} accept compression before the login
+         * @param node        {@link ChatNode}
+         */
+        private SimulatedClient(final String name, final boolean compression, final ChatNode node) {
+            this.name = name;
+            this.compression = compression;
+            this.protocol = new ConnectionProtocol(node, connection, HOST);
+            this.session = new ChatSession(this, () -> name, this);
+        }
+
+        public void open(final Transport.Listener listener) {
+        }
+
+        public void send(final Message message) {
+            final String frame = CODEC.encode(message);
+            if (closed || frame == null) {
+                return;
+            }
+            if (compression && message.getType() == Message.Type.LOGIN) {
+                outbound.add(ACCEPT_COMPRESSION);
+            }
+            outbound.add(frame);
+        }
+
+        public void close() {
+            closed = true;
+        }
+
+        public String getStats() {
+            return connection.getStats();
+        }
+
+        public void onConnected() {
+        }
+
+        public void onLine(final String line) {
+        }
+
+        public void onUsers(final Set<String> users) {
+        }
+
+        public void onRejected(final ChatSession session, final String reason) {
+            closed = true;
+        }
+
+        public void onReconnecting(final IOException cause) {
+        }
+
+        public void onDisconnected(final IOException cause) {
+        }
+    }
+
+    /**
+     * Channel collecting bytes written by a {@link Connection}.
+     */
+    private static final class MemoryChannel implements GatheringByteChannel {
+
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private boolean open = true;
+
+        /**
+         * Removes and returns complete lines written so far.
+         *
+         * @return {@link List}
+         */
+        private List<String> takeLines() {
+            final byte[] bytes = written.toByteArray();
+            int end = bytes.length;
+            while (end > 0 && bytes[end - 1] != '\n') {
+                end--;
+            }
+            if (end == 0) {
+                return Collections.emptyList();
+            }
+            written.reset();
+            written.write(bytes, end, bytes.length - end);
+            final List<String> lines = new ArrayList<>();
+            Collections.addAll(lines, new String(bytes, 0, end - 1, StandardCharsets.UTF_8).split("\n", -1));
+            return lines;
+        }
+
+        public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+            long count = 0;
+            for (int i = offset; i < offset + length; i++) {
+                count += write(srcs[i]);
+            }
+            return count;
+        }
+
+        public long write(final ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public int write(final ByteBuffer src) throws IOException {
+            final byte[] bytes = new byte[src.remaining()];
+            src.get(bytes);
+            written.write(bytes, 0, bytes.length);
+            return bytes.length;
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public void close() {
+            open = false;
+        }
+    }
+
+    /**
+     * Runs the simulation.
+     *
+     * @param args {@link String}
+     */
+    public static void main(final String[] args) throws IOException {
+        final long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+        final int clients = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        final long steps = args.length > 2 ? Long.parseLong(args[2]) : 500000;
+        new Simulation(seed, clients).run(steps);
+    }
+}
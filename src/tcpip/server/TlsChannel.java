@@ -0,0 +1,245 @@
+package tcpip.server;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * TLS over a blocking socket channel. Reads and writes may be done concurrently by the reading thread
+ * and the connection writer, gathering writes are encrypted straight from the frames without copying them.
+ *
+ * @author Bartosz Śledź
+ */
+final class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+    private static final ByteBuffer[] EMPTY = {ByteBuffer.allocate(0)};
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final ServerTls tls;
+    private final ByteBuffer netIn;
+    private final ByteBuffer appIn;
+    private final ByteBuffer netOut;
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+
+    /**
+     * @param channel {@link SocketChannel} in blocking mode
+     * @param engine  {@link SSLEngine}
+     * @param tls     {@link ServerTls} runs delegated handshake tasks
+     */
+    TlsChannel(final SocketChannel channel, final SSLEngine engine, final ServerTls tls) {
+        this.channel = channel;
+        this.engine = engine;
+        this.tls = tls;
+        this.netIn = ByteBuffer.allocateDirect(engine.getSession().getPacketBufferSize());
+        this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        this.netOut = ByteBuffer.allocateDirect(engine.getSession().getPacketBufferSize());
+    }
+
+    /**
+     * Performs the handshake, returns once the connection is ready for application data.
+     */
+    void handshake() throws IOException {
+        engine.beginHandshake();
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        while (status != SSLEngineResult.HandshakeStatus.FINISHED
+                && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            switch (status) {
+                case NEED_WRAP:
+                    status = wrap(EMPTY, 0, 1).getHandshakeStatus();
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    synchronized (readLock) {
+                        final SSLEngineResult result = unwrap();
+                        if (result == null) {
+                            throw new SSLException("Connection closed during handshake");
+                        }
+                        status = result.getHandshakeStatus();
+                    }
+                    break;
+                case NEED_TASK:
+                    tls.runTasks(engine);
+                    status = engine.getHandshakeStatus();
+                    break;
+                default:
+                    throw new SSLException("Unexpected handshake status: " + status);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int read(final ByteBuffer dst) throws IOException {
+        synchronized (readLock) {
+            while (appIn.position() == 0) {
+                final SSLEngineResult result = unwrap();
+                if (result == null) {
+                    return -1;
+                }
+                afterOperation(result);
+            }
+            appIn.flip();
+            final int count = Math.min(appIn.remaining(), dst.remaining());
+            final ByteBuffer slice = appIn.slice();
+            slice.limit(count);
+            dst.put(slice);
+            appIn.position(appIn.position() + count);
+            appIn.compact();
+            return count;
+        }
+    }
+
+    /**
+     * Unwraps one record, reading from the socket until a whole record is available.
+     *
+     * @return {@link SSLEngineResult} or null at the end of stream
+     */
+    private SSLEngineResult unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            final SSLEngineResult result = engine.unwrap(netIn, appIn);
+            netIn.compact();
+            switch (result.getStatus()) {
+                case OK:
+                    return result;
+                case BUFFER_UNDERFLOW:
+                    if (channel.read(netIn) < 0) {
+                        return null;
+                    }
+                    break;
+                case CLOSED:
+                    return null;
+                default:
+                    throw new SSLException("Unexpected unwrap status: " + result.getStatus());
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int write(final ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long write(final ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+        long written = 0;
+        while (hasRemaining(srcs, offset, length)) {
+            final SSLEngineResult result = wrap(srcs, offset, length);
+            written += result.bytesConsumed();
+            afterOperation(result);
+        }
+        return written;
+    }
+
+    /**
+     * Encrypts as much as fits into one record and writes it to the socket.
+     *
+     * @param srcs   {@link ByteBuffer}
+     * @param offset {@link int}
+     * @param length {@link int}
+     * @return {@link SSLEngineResult}
+     */
+    private SSLEngineResult wrap(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+        synchronized (writeLock) {
+            netOut.clear();
+            final SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+            if (result.getStatus() != SSLEngineResult.Status.OK) {
+                throw new SSLException("Unexpected wrap status: " + result.getStatus());
+            }
+            netOut.flip();
+            while (netOut.hasRemaining()) {
+                channel.write(netOut);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Answers post handshake messages, e.g. key updates.
+     *
+     * @param result {@link SSLEngineResult}
+     */
+    private void afterOperation(final SSLEngineResult result) throws IOException {
+        switch (result.getHandshakeStatus()) {
+            case NEED_TASK:
+                tls.runTasks(engine);
+                break;
+            case NEED_WRAP:
+                wrap(EMPTY, 0, 1);
+                break;
+        }
+    }
+
+    private static boolean hasRemaining(final ByteBuffer[] srcs, final int offset, final int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Sends close notification when possible and closes the socket.
+     */
+    public void close() throws IOException {
+        try {
+            if (channel.isOpen()) {
+                closeNotify();
+            }
+        } catch (IOException e) {
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Closes the outbound side of the engine and writes its close_notify alert,
+     * wrapping after {@link SSLEngine#closeOutbound()} reports status CLOSED.
+     */
+    private void closeNotify() throws IOException {
+        synchronized (writeLock) {
+            engine.closeOutbound();
+            while (!engine.isOutboundDone()) {
+                netOut.clear();
+                final SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                if (result.getStatus() != SSLEngineResult.Status.CLOSED && result.getStatus() != SSLEngineResult.Status.OK) {
+                    throw new SSLException("Unexpected wrap status: " + result.getStatus());
+                }
+                netOut.flip();
+                while (netOut.hasRemaining()) {
+                    channel.write(netOut);
+                }
+                if (result.bytesProduced() == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}